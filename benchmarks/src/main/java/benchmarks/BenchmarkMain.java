@@ -0,0 +1,29 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+/**
+ * The standard JMH command line, except that results go to jmh-result.json by default so runs can be
+ * compared. Any -rf / -rff given on the command line wins; everything else, including -l, -lp, -lprof
+ * and -h, is handled by JMH's own main.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        List<String> jmhArgs = new ArrayList<>();
+        if (!cmd.getResultFormat().hasValue()) {
+            jmhArgs.addAll(Arrays.asList("-rf", "json"));
+        }
+        if (!cmd.getResult().hasValue()) {
+            jmhArgs.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        }
+        jmhArgs.addAll(Arrays.asList(args));
+        Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Building the Send As test message, and building plus serializing it the way Transport.sendMessage
+ * does (writeTo runs saveChanges, which generates the Message-ID and content headers).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SendAsMessageBenchmark {
+
+    private static final MethodHandle SEND_AS_MESSAGE = Tool.staticMethod("SmtpConnectionTester", "sendAsMessage",
+            MimeMessage.class, Session.class, String.class, String.class, String.class);
+
+    private Session session;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+
+    @Setup
+    public void setUp() {
+        session = Session.getInstance(Tool.mailProperties());
+    }
+
+    @Benchmark
+    public MimeMessage build() throws Throwable {
+        return (MimeMessage) SEND_AS_MESSAGE.invokeExact(session,
+                "monitor@contoso.com", "shared@contoso.com", "recipient@contoso.com");
+    }
+
+    @Benchmark
+    public int buildAndWriteTo() throws Throwable {
+        MimeMessage message = (MimeMessage) SEND_AS_MESSAGE.invokeExact(session,
+                "monitor@contoso.com", "shared@contoso.com", "recipient@contoso.com");
+        out.reset();
+        message.writeTo(out);
+        return out.size();
+    }
+}
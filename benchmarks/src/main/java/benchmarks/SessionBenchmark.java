@@ -0,0 +1,51 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.mail.Session;
+
+/**
+ * Cost of creating a mail Session: the plain Session.getInstance the tester used to call per check, and
+ * MailConnectionManager.newSession, which also installs the timing socket factories and providers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionBenchmark {
+
+    private static final MethodHandle NEW_SESSION =
+            Tool.staticMethod("MailConnectionManager", "newSession", Session.class, Properties.class);
+
+    private Properties props;
+
+    @Setup
+    public void setUp() {
+        props = Tool.mailProperties();
+    }
+
+    @Benchmark
+    public Session getInstance() {
+        return Session.getInstance(props);
+    }
+
+    @Benchmark
+    public Session instrumentedSession() throws Throwable {
+        return (Session) NEW_SESSION.invokeExact(props);
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The token endpoint round trip minus the network: building the form body of the code exchange and
+ * parsing a token response of realistic size with org.json.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenBenchmark {
+
+    private static final MethodHandle TOKEN_REQUEST_BODY =
+            Tool.staticMethod("SmtpConnectionTester", "tokenRequestBody", String.class, Properties.class, String.class);
+
+    private Properties props;
+    private String code;
+    private String tokenResponse;
+
+    @Setup
+    public void setUp() {
+        props = Tool.mailProperties();
+        code = "0.AXoA" + "Qx7-9zR_aB3cD4eF5gH6".repeat(40);
+        JSONObject response = new JSONObject();
+        response.put("token_type", "Bearer");
+        response.put("scope", props.getProperty("mail.oauth.scope"));
+        response.put("expires_in", 4413);
+        response.put("ext_expires_in", 4413);
+        // Entra access tokens are JWTs of roughly 1.5-2.5 KB; refresh tokens are similar.
+        response.put("access_token", "eyJ0eXAiOiJKV1QiLCJub25jZSI6" + "aGVsbG8td29ybGQtMTIzNDU2Nzg5MA".repeat(70));
+        response.put("refresh_token", "0.AXoA" + "c2VjcmV0LXJlZnJlc2gtdG9rZW4tdmFsdWU".repeat(50));
+        tokenResponse = response.toString();
+    }
+
+    @Benchmark
+    public String tokenRequestBody() throws Throwable {
+        return (String) TOKEN_REQUEST_BODY.invokeExact(props, code);
+    }
+
+    @Benchmark
+    public void parseTokenResponse(Blackhole blackhole) {
+        JSONObject json = new JSONObject(tokenResponse);
+        blackhole.consume(json.getString("access_token"));
+        blackhole.consume(json.optString("refresh_token", null));
+        blackhole.consume(json.getLong("expires_in"));
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Properties;
+
+/**
+ * Access to the tester's classes, which live in the default package and so cannot be imported here,
+ * plus the configuration the benchmarks run with.
+ */
+final class Tool {
+
+    private Tool() {
+    }
+
+    /**
+     * Looks up a static method of a default-package class, including package-private ones.
+     * The returned handle is meant to be stored in a static final field and called with invokeExact.
+     */
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> type = Class.forName(className);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            return lookup.findStatic(type, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot reach " + className + "." + name, e);
+        }
+    }
+
+    /**
+     * The shipped mail.properties (copied onto the classpath by the build), with placeholder identities
+     * filled in where the file leaves them blank.
+     */
+    static Properties mailProperties() {
+        Properties props = new Properties();
+        try (InputStream input = Tool.class.getResourceAsStream("/mail.properties")) {
+            if (input == null) throw new IllegalStateException("mail.properties is not on the classpath");
+            props.load(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        props.setProperty("mail.user", "monitor@contoso.com");
+        props.setProperty("mail.shared.mailbox.address", "shared@contoso.com");
+        props.setProperty("mail.test.recipient", "recipient@contoso.com");
+        props.setProperty("mail.oauth.client.id", "00000000-0000-0000-0000-000000000000");
+        props.setProperty("mail.oauth.client.secret", "client~secret.with/special+chars=");
+        return props;
+    }
+}
@@ -0,0 +1,91 @@
+import java.awt.Desktop;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The browser half of the Authorization Code Flow: a local redirect server plus opening the sign-in page.
+ * Kept apart from SmtpConnectionTester so that runs which never sign in interactively load neither AWT
+ * nor the HTTP server classes.
+ */
+public class BrowserAuthorization {
+
+    /**
+     * Starts a local server, opens a browser for user consent, and captures the authorization code.
+     * Returns null if no code was received.
+     */
+    static String getAuthorizationCode(Properties props) throws IOException {
+        AtomicReference<String> authorizationCode = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        URI redirectUri = URI.create(props.getProperty("mail.oauth.redirect.uri"));
+        int port = redirectUri.getPort();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(redirectUri.getPath(), httpExchange -> {
+            String query = httpExchange.getRequestURI().getQuery();
+            if (query != null && query.contains("code=")) {
+                String[] params = query.split("&");
+                for (String param : params) {
+                    if (param.startsWith("code=")) {
+                        authorizationCode.set(param.substring(5));
+                        break;
+                    }
+                }
+                String response = "<html><body><h1>Authorization successful!</h1><p>You can close this browser tab now.</p></body></html>";
+                httpExchange.sendResponseHeaders(200, response.length());
+                try (OutputStream os = httpExchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+            } else {
+                 String errorResponse = "<html><body><h1>Authorization Failed</h1><p>No authorization code was found in the request.</p></body></html>";
+                 httpExchange.sendResponseHeaders(400, errorResponse.length());
+                 try (OutputStream os = httpExchange.getResponseBody()) {
+                    os.write(errorResponse.getBytes());
+                }
+            }
+            latch.countDown();
+        });
+        server.setExecutor(null);
+        server.start();
+        System.out.println("Local server started on port " + port);
+
+        String scope = props.getProperty("mail.oauth.scope", "").replace('+', ' ').replaceAll("\\s+", " ").trim();
+        String authUrl = props.getProperty("mail.oauth.auth.url") + "?" +
+                "client_id=" + URLEncoder.encode(props.getProperty("mail.oauth.client.id"), StandardCharsets.UTF_8) + "&" +
+                "redirect_uri=" + URLEncoder.encode(redirectUri.toString(), StandardCharsets.UTF_8) + "&" +
+                "response_type=code&" +
+                "scope=" + URLEncoder.encode(scope, StandardCharsets.UTF_8) + "&" +
+                "access_type=offline";
+
+        System.out.println("\n--- User Action Required ---");
+        System.out.println("Please open the following URL in your browser, log in, and grant permissions:");
+        System.out.println("\n" + authUrl + "\n");
+
+        try {
+            if (Desktop.isDesktopSupported() && Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
+                Desktop.getDesktop().browse(new URI(authUrl));
+                System.out.println("Your default browser should have opened for authentication.");
+            }
+        } catch (Exception e) {
+            System.err.println("Could not automatically open browser. Please copy/paste the URL manually.");
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Thread interrupted while waiting for authorization.");
+        }
+        server.stop(1);
+        System.out.println("Local server stopped.");
+        return authorizationCode.get();
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Properties;
+
+/**
+ * Training run for the class data sharing archive built by the 'cds' Maven profile.
+ *
+ * Starts the stand-in servers on free ports and runs the device code flow and the connection tests
+ * against them, so every class a real probe needs is loaded and ends up in the archive written by
+ * -XX:ArchiveClassesAtExit. Nothing is written to disk besides the archive itself.
+ *
+ * The stand-ins are not part of the JAR; they are loaded from the directory or JAR named by the
+ * 'cds.standin.path' system property (the build's test classes), through a class loader of their own so
+ * that the archive's class path stays the JAR alone and matches the one it is used with.
+ */
+public class CdsTraining {
+
+    public static void main(String[] args) throws Exception {
+        Properties props = new Properties();
+        try (InputStream input = new FileInputStream("mail.properties")) {
+            props.load(input);
+        } catch (IOException e) {
+            // Train with the shipped protocol settings below.
+        }
+        props.putIfAbsent("mail.smtp.auth", "true");
+        props.putIfAbsent("mail.smtp.starttls.enable", "true");
+        props.putIfAbsent("mail.smtp.auth.mechanisms", "XOAUTH2");
+        props.putIfAbsent("mail.imap.ssl.enable", "true");
+        props.putIfAbsent("mail.imap.sasl.enable", "true");
+        props.putIfAbsent("mail.imap.sasl.mechanisms", "XOAUTH2");
+        props.putIfAbsent("mail.imap.timeout", "10000");
+        props.putIfAbsent("mail.smtp.timeout", "10000");
+        props.setProperty("standin.smtp.port", "0");
+        props.setProperty("standin.imap.port", "0");
+        props.setProperty("standin.http.port", "0");
+        for (String part : new String[]{"smtp", "imap", "token"}) {
+            props.setProperty("standin." + part + ".latency.ms", "0");
+            props.setProperty("standin." + part + ".error.rate", "0");
+        }
+        props.setProperty("standin.pending.polls", "1");
+        props.setProperty("standin.device.interval.seconds", "0");
+        props.setProperty("standin.imap.messages", "10");
+
+        String standInPath = System.getProperty("cds.standin.path", "");
+        if (standInPath.isEmpty()) {
+            throw new IllegalStateException("Set -Dcds.standin.path to the directory or JAR holding the stand-in servers");
+        }
+        URL[] standIns = {new File(standInPath).toURI().toURL()};
+        try (URLClassLoader loader = new URLClassLoader(standIns, CdsTraining.class.getClassLoader());
+             AutoCloseable servers = (AutoCloseable) Class.forName("StandInServers", true, loader)
+                     .getMethod("start", Properties.class).invoke(null, props)) {
+            servers.getClass().getMethod("configureClient", Properties.class).invoke(servers, props);
+            props.setProperty("mail.user", "training@standin.test");
+            props.setProperty("mail.shared.mailbox.address", "shared@standin.test");
+            props.setProperty("mail.test.recipient", "recipient@standin.test");
+            props.setProperty("mail.oauth.client.id", "cds-training");
+            props.setProperty("mail.oauth.token.cache.file", "");
+            props.setProperty("mail.report.file", "");
+            props.setProperty("mail.results.dir", "");
+            props.setProperty("mail.trace.dir", "");
+            SmtpConnectionTesterDeviceFlow.run(new String[0], props);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import jakarta.mail.Transport;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+import org.eclipse.angus.mail.imap.IMAPFolder;
+
+/**
+ * Delivery mode: measures how long a message takes from submission over SMTP until it arrives in the
+ * watched mailbox.
+ *
+ * Every probe message carries a unique X-Tester-Probe-Id header. One IMAP connection, logged in the same
+ * way as the shared mailbox check, keeps INBOX in IDLE, so the server announces arrivals and nothing is
+ * polled. New messages are matched against the probes in flight by fetching only that header, so any
+ * number of probes can be outstanding on the one connection. Probes that have not arrived after
+ * 'mail.delivery.timeout.seconds' count as lost.
+ */
+public class DeliveryProbe implements AutoCloseable {
+
+    static final String HEADER = "X-Tester-Probe-Id";
+    static final String PHASE = "delivery.send_to_inbox";
+
+    // Servers may drop a connection that has been idling for 30 minutes (RFC 2177), so IDLE is renewed before that.
+    private static final long IDLE_RENEW_NANOS = TimeUnit.MINUTES.toNanos(25);
+    private static final long RECONNECT_MILLIS = 5000;
+
+    private final Properties props;
+    private final String userEmail;
+    private final String mailbox;
+    private final Callable<String> accessToken;
+    private final boolean delete;
+    private final long timeoutNanos;
+
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextUid = new AtomicLong(-1);
+    private volatile long uidValidity = -1;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "delivery-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread watcher;
+    private volatile boolean closed;
+    private volatile IMAPFolder folder;
+    private volatile long idleSince;
+
+    final LongAdder delivered = new LongAdder();
+    final LongAdder lost = new LongAdder();
+    final LongAdder notSent = new LongAdder();
+
+    private static final class Pending {
+        final long sentNanos;
+        final CompletableFuture<Long> arrival = new CompletableFuture<>();
+
+        Pending(long sentNanos) {
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private DeliveryProbe(Properties props, String userEmail, String mailbox, Callable<String> accessToken) {
+        this.props = props;
+        this.userEmail = userEmail;
+        this.mailbox = mailbox;
+        this.accessToken = accessToken;
+        this.delete = Boolean.parseBoolean(props.getProperty("mail.delivery.delete", "true").trim());
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(props.getProperty("mail.delivery.timeout.seconds", "300").trim()));
+        this.watcher = new Thread(this::watch, "delivery-watcher");
+        watcher.setDaemon(true);
+    }
+
+    /**
+     * Sends mail.delivery.probes probes, one every mail.delivery.interval.ms without waiting for earlier
+     * ones to arrive, and prints the send-to-inbox latency percentiles once every probe arrived or timed out.
+     */
+    public static void run(Properties props, String userEmail, String sharedMailbox, String accessToken) throws Exception {
+        String watched = watchedMailbox(props, userEmail, sharedMailbox);
+        int probes = Integer.parseInt(props.getProperty("mail.delivery.probes", "20").trim());
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(props.getProperty("mail.delivery.interval.ms", "1000").trim()));
+
+        System.out.println("\n--- Delivery Latency ---");
+        System.out.printf("Sending %d probe(s) from '%s' to '%s' and watching its INBOX with IDLE%n", probes, userEmail, watched);
+        try (DeliveryProbe probe = start(props, userEmail, watched, () -> accessToken)) {
+            if (!probe.awaitReady(60, TimeUnit.SECONDS)) {
+                System.err.println("Could not open the INBOX of '" + watched + "' for watching; no probes sent.");
+                return;
+            }
+            List<CompletableFuture<Long>> arrivals = new ArrayList<>();
+            long next = System.nanoTime();
+            for (int i = 1; i <= probes; i++) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                next += intervalNanos;
+                int number = i;
+                try {
+                    arrivals.add(probe.send(accessToken).thenApply(nanos -> {
+                        System.out.println(nanos >= 0
+                                ? String.format("Probe %d arrived after %.0f ms (%d in flight)", number, nanos / 1e6, probe.inFlight())
+                                : "Probe " + number + " did not arrive in time");
+                        return nanos;
+                    }));
+                } catch (MessagingException e) {
+                    System.err.println("Probe " + number + " could not be sent: " + e.getMessage());
+                }
+            }
+
+            LatencyHistogram latency = new LatencyHistogram();
+            for (CompletableFuture<Long> arrival : arrivals) {
+                long nanos = arrival.get();
+                if (nanos >= 0) latency.recordNanos(nanos);
+            }
+            System.out.println("\n==================================================================");
+            System.out.printf("Delivered %d of %d probes (%d lost, %d not sent)%n", latency.count(), probes, probe.lost.sum(), probe.notSent.sum());
+            if (latency.count() > 0) {
+                System.out.printf("Send to inbox: p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms%n",
+                        latency.percentileMicros(50) / 1000.0, latency.percentileMicros(90) / 1000.0,
+                        latency.percentileMicros(99) / 1000.0, latency.maxMicros() / 1000.0);
+            }
+            System.out.println("==================================================================");
+        }
+    }
+
+    /**
+     * The mailbox probes are sent to and watched in: mail.delivery.mailbox, else the shared mailbox, else the user.
+     */
+    static String watchedMailbox(Properties props, String userEmail, String sharedMailbox) {
+        String configured = props.getProperty("mail.delivery.mailbox", "").trim();
+        if (!configured.isEmpty()) return configured;
+        return sharedMailbox == null || sharedMailbox.trim().isEmpty() ? userEmail : sharedMailbox.trim();
+    }
+
+    /**
+     * Starts watching the mailbox on a background thread. The access token is asked for again on every reconnect.
+     */
+    static DeliveryProbe start(Properties props, String userEmail, String mailbox, Callable<String> accessToken) {
+        DeliveryProbe probe = new DeliveryProbe(props, userEmail, mailbox, accessToken);
+        probe.watcher.start();
+        probe.timer.scheduleWithFixedDelay(probe::tick, 1, 1, TimeUnit.SECONDS);
+        return probe;
+    }
+
+    /** Waits until the watching connection has INBOX open for the first time. */
+    boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /** Probes sent that have neither arrived nor timed out. */
+    int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Sends one probe to the watched mailbox and returns once the server accepted it. The future completes
+     * with the send-to-inbox time in nanoseconds when it arrives, or with -1 when it times out.
+     */
+    CompletableFuture<Long> send(String token) throws MessagingException {
+        String id = UUID.randomUUID().toString();
+        MimeMessage message = new MimeMessage(MailConnectionManager.session(props));
+        message.setFrom(new InternetAddress(userEmail));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(mailbox));
+        message.setSubject("OAuth Connection Tester - Delivery Probe");
+        message.setHeader(HEADER, id);
+        message.setText("Delivery latency probe sent by the OAuth Connection Tester for " + userEmail + ".");
+        message.setSentDate(new Date());
+        message.saveChanges();
+
+        try (MailConnectionManager.Lease<Transport> transport = MailConnectionManager.smtp(props, userEmail, token)) {
+            // The probe is registered before it is sent, so even an immediate arrival finds it.
+            Pending probe = new Pending(System.nanoTime());
+            pending.put(id, probe);
+            try {
+                transport.get().sendMessage(message, message.getAllRecipients());
+                LatencyReport.record("smtp.send", System.nanoTime() - probe.sentNanos);
+                return probe.arrival;
+            } catch (MessagingException e) {
+                pending.remove(id);
+                transport.invalidate();
+                throw e;
+            }
+        } catch (MessagingException e) {
+            notSent.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Keeps one connection idling on INBOX, reconnecting (after the server's backoff if it throttled) when it drops.
+     */
+    private void watch() {
+        while (!closed) {
+            try {
+                MailConnectionManager.Lease<Store> store = MailConnectionManager.imap(props, mailbox, accessToken.call());
+                try {
+                    idle((IMAPFolder) store.get().getFolder("INBOX"));
+                } catch (MessagingException | RuntimeException e) {
+                    store.invalidate();
+                    throw e;
+                } finally {
+                    store.close();
+                }
+            } catch (Exception e) {
+                if (closed) return;
+                Throttle throttle = Throttle.of(e);
+                long wait = throttle != null && throttle.retryAfterMillis >= 0 ? throttle.retryAfterMillis : RECONNECT_MILLIS;
+                System.err.println("Delivery watcher lost the IMAP connection to '" + mailbox + "' (" + e.getMessage() + "); reconnecting in " + wait + " ms.");
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void idle(IMAPFolder inbox) throws MessagingException {
+        inbox.open(delete ? Folder.READ_WRITE : Folder.READ_ONLY);
+        try {
+            inbox.addMessageCountListener(new MessageCountAdapter() {
+                @Override
+                public void messagesAdded(MessageCountEvent event) {
+                    arrived(inbox, event.getMessages(), System.nanoTime());
+                }
+            });
+            // Probes that arrived while disconnected carry UIDs from the last one seen onwards; they are
+            // matched now, so their latency is an upper bound. A new UIDVALIDITY means those UIDs are void.
+            long validity = inbox.getUIDValidity();
+            long missedFrom = validity == uidValidity ? nextUid.getAndAccumulate(inbox.getUIDNext(), Math::max) : -1;
+            if (missedFrom < 0) nextUid.set(inbox.getUIDNext());
+            uidValidity = validity;
+            if (missedFrom > 0 && !pending.isEmpty()) {
+                arrived(inbox, inbox.getMessagesByUID(missedFrom, UIDFolder.LASTUID), System.nanoTime());
+            }
+            folder = inbox;
+            ready.countDown();
+            while (!closed && inbox.isOpen()) {
+                idleSince = System.nanoTime();
+                inbox.idle();
+            }
+        } finally {
+            folder = null;
+            if (inbox.isOpen()) inbox.close(false);
+        }
+    }
+
+    /**
+     * Matches new messages against the probes in flight. Runs on the mail session's event thread; using the
+     * folder ends the current IDLE, which the watcher then starts again.
+     */
+    private void arrived(IMAPFolder inbox, Message[] messages, long arrivedNanos) {
+        if (pending.isEmpty() || messages.length == 0) return;
+        FetchProfile profile = new FetchProfile();
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        profile.add(HEADER);
+        try {
+            inbox.fetch(messages, profile);
+            List<Message> probes = new ArrayList<>();
+            for (Message message : messages) {
+                nextUid.accumulateAndGet(inbox.getUID(message) + 1, Math::max);
+                String[] id = message.getHeader(HEADER);
+                Pending probe = id == null ? null : pending.remove(id[0]);
+                if (probe == null) continue;
+                long latency = arrivedNanos - probe.sentNanos;
+                LatencyReport.record(PHASE, latency);
+                delivered.increment();
+                probe.arrival.complete(latency);
+                probes.add(message);
+            }
+            if (delete && !probes.isEmpty()) {
+                Message[] arrived = probes.toArray(new Message[0]);
+                inbox.setFlags(arrived, new Flags(Flags.Flag.DELETED), true);
+                // UID EXPUNGE removes only the probes, never messages someone else marked deleted.
+                inbox.expunge(arrived);
+            }
+        } catch (MessagingException | IllegalStateException e) {
+            if (closed) return;
+            System.err.println("Could not match new messages in '" + mailbox + "' against the delivery probes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Once a second: times out probes that did not arrive, and renews IDLE before the server gives up on it.
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+            Pending probe = entry.getValue();
+            if (now - probe.sentNanos > timeoutNanos && pending.remove(entry.getKey(), probe)) {
+                lost.increment();
+                probe.arrival.complete(-1L);
+            }
+        }
+        IMAPFolder inbox = folder;
+        if (inbox != null && now - idleSince > IDLE_RENEW_NANOS) {
+            try {
+                inbox.doCommand(protocol -> {
+                    protocol.noop();
+                    return null;
+                });
+            } catch (MessagingException e) {
+                // The watcher sees the same failure and reconnects.
+            }
+        }
+    }
+
+    /**
+     * Stops watching. Probes still in flight are abandoned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        IMAPFolder inbox = folder;
+        if (inbox != null) {
+            try {
+                inbox.close(false);
+            } catch (MessagingException | IllegalStateException e) {
+                // Already closed by the watcher or the server.
+            }
+        }
+        watcher.interrupt();
+        try {
+            watcher.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
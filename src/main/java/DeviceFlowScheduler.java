@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * Polls the token endpoint for any number of pending device codes from a single timer thread.
+ *
+ * Each poll is scheduled after the code's interval and sent asynchronously through {@link TokenClient},
+ * so waiting sign-ins hold no threads. 'authorization_pending' schedules the next poll, 'slow_down'
+ * adds 5 seconds to that code's interval (RFC 8628, section 3.5), throttling and server errors wait for
+ * Retry-After (or the interval) and try again, and any other error ends that sign-in.
+ */
+public class DeviceFlowScheduler {
+
+    private static final long SLOW_DOWN_INCREMENT_MILLIS = 5000L;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "device-flow-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts polling for the device code response. The future completes with the token response,
+     * or fails with an IOException when the user declines, the code expires or the server refuses it.
+     */
+    public CompletableFuture<JSONObject> poll(Properties props, JSONObject deviceCodeResponse) {
+        String form = TokenClient.form(
+                "grant_type", "urn:ietf:params:oauth:grant-type:device_code",
+                "client_id", props.getProperty("mail.oauth.client.id"),
+                "device_code", deviceCodeResponse.getString("device_code"),
+                // Only needed by app registrations that are not marked as public clients (AADSTS7000218).
+                "client_secret", props.getProperty("mail.oauth.client.secret"));
+        Poll poll = new Poll(props.getProperty("mail.oauth.token.url"), form,
+                deviceCodeResponse.optLong("interval", 5) * 1000L,
+                System.currentTimeMillis() + deviceCodeResponse.optLong("expires_in", 900) * 1000L);
+        poll.schedule(poll.intervalMillis);
+        return poll.result;
+    }
+
+    private final class Poll {
+        final String tokenUrl;
+        final String form;
+        final long deadline;
+        final CompletableFuture<JSONObject> result = new CompletableFuture<>();
+        long intervalMillis;
+
+        Poll(String tokenUrl, String form, long intervalMillis, long deadline) {
+            this.tokenUrl = tokenUrl;
+            this.form = form;
+            this.intervalMillis = intervalMillis;
+            this.deadline = deadline;
+        }
+
+        void schedule(long delayMillis) {
+            if (result.isDone()) return;
+            // A 429 to any poll pauses them all, so hundreds of pending codes do not keep hammering the endpoint.
+            delayMillis = Math.max(delayMillis, TokenClient.throttledMillis(tokenUrl));
+            if (System.currentTimeMillis() + delayMillis > deadline) {
+                result.completeExceptionally(new IOException("The device code expired before sign-in completed."));
+                return;
+            }
+            timer.schedule(this::send, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void send() {
+            TokenClient.post(tokenUrl, form, "oauth.token_poll").whenComplete((reply, error) -> {
+                if (error != null) {
+                    // Network trouble is not the user's answer; keep polling until the code expires.
+                    schedule(intervalMillis);
+                } else if (reply.isSuccess()) {
+                    result.complete(reply.body);
+                } else if ("authorization_pending".equals(reply.error())) {
+                    schedule(intervalMillis);
+                } else if ("slow_down".equals(reply.error())) {
+                    intervalMillis += SLOW_DOWN_INCREMENT_MILLIS;
+                    schedule(intervalMillis);
+                } else if (reply.isTransient()) {
+                    schedule(reply.retryAfterSeconds >= 0 ? reply.retryAfterSeconds * 1000L : intervalMillis);
+                } else {
+                    result.completeExceptionally(new IOException(reply.describe()));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide DNS answers and per-address connect statistics for the mail hosts.
+ *
+ * Host names are resolved to all of their addresses and the answer is kept for a bounded time, so a fleet
+ * run resolves each host once per TTL instead of once per connection. Every address also keeps a moving
+ * average of its connect time (including attempts that lost a race, counted as at least as slow as the
+ * time they had taken) and the time of its last failure, which {@link #rank} uses to try fast addresses first.
+ */
+public class EndpointCache {
+
+    /** Weight of the newest sample in the moving average. */
+    private static final double ALPHA = 0.3;
+
+    /** How long an address that refused or failed a connect stays at the back of the list. */
+    private static final long FAILURE_PENALTY_MILLIS = 5 * 60 * 1000L;
+
+    private static final ConcurrentHashMap<String, Resolution> resolutions = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<InetAddress, AddressStats> stats = new ConcurrentHashMap<>();
+
+    private static final class Resolution {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        Resolution(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class AddressStats {
+        volatile double averageNanos = -1;
+        volatile long failedAt;
+    }
+
+    private static final class Candidate {
+        final InetAddress address;
+        final boolean recentlyFailed;
+        final double averageNanos;
+
+        Candidate(InetAddress address, boolean recentlyFailed, double averageNanos) {
+            this.address = address;
+            this.recentlyFailed = recentlyFailed;
+            this.averageNanos = averageNanos;
+        }
+    }
+
+    /**
+     * Returns all addresses of the host, from the cache while the answer is younger than the TTL.
+     * Real lookups are recorded as the protocol's DNS phase; cache hits are not.
+     */
+    static InetAddress[] resolve(String protocol, String host, long ttlMillis) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Resolution cached = resolutions.get(host);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.addresses;
+        }
+        long start = System.nanoTime();
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        LatencyReport.record(protocol + ".dns", System.nanoTime() - start);
+        if (ttlMillis > 0) {
+            resolutions.put(host, new Resolution(addresses, now + ttlMillis));
+        }
+        return addresses;
+    }
+
+    /**
+     * Orders addresses for a connect race: addresses without a recent failure first, fastest average
+     * first. Addresses never tried count as taking 'unknownNanos', so a known address slower than that
+     * is tried after them. Ties keep the resolver's order.
+     */
+    static InetAddress[] rank(InetAddress[] addresses, long unknownNanos) {
+        // Other threads keep updating the statistics; read each address's once, so the sort sees fixed keys.
+        long now = System.currentTimeMillis();
+        Candidate[] candidates = new Candidate[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            InetAddress a = addresses[i];
+            candidates[i] = new Candidate(a, recentlyFailed(a, now), averageNanos(a, unknownNanos));
+        }
+        Arrays.sort(candidates, Comparator
+                .comparing((Candidate c) -> c.recentlyFailed)
+                .thenComparingDouble(c -> c.averageNanos));
+        InetAddress[] ranked = new InetAddress[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            ranked[i] = candidates[i].address;
+        }
+        return ranked;
+    }
+
+    static void recordConnect(InetAddress address, long nanos) {
+        AddressStats s = stats(address);
+        s.failedAt = 0;
+        update(s, nanos);
+    }
+
+    /**
+     * Records an attempt that was abandoned after 'nanos' because another address connected first.
+     */
+    static void recordSlow(InetAddress address, long nanos) {
+        update(stats(address), nanos);
+    }
+
+    static void recordFailure(InetAddress address) {
+        stats(address).failedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the moving average connect time for the address in nanoseconds, or -1 if it was never measured.
+     */
+    static double averageNanos(InetAddress address) {
+        AddressStats s = stats.get(address);
+        return s == null ? -1 : s.averageNanos;
+    }
+
+    private static double averageNanos(InetAddress address, long unknownNanos) {
+        double average = averageNanos(address);
+        return average < 0 ? unknownNanos : average;
+    }
+
+    private static boolean recentlyFailed(InetAddress address, long now) {
+        AddressStats s = stats.get(address);
+        return s != null && s.failedAt != 0 && now - s.failedAt < FAILURE_PENALTY_MILLIS;
+    }
+
+    private static AddressStats stats(InetAddress address) {
+        return stats.computeIfAbsent(address, a -> new AddressStats());
+    }
+
+    private static synchronized void update(AddressStats s, long nanos) {
+        s.averageNanos = s.averageNanos < 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * s.averageNanos;
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fleet mode: probes every shared mailbox listed in a file, many at a time, and streams one result
+ * line per mailbox as soon as it finishes.
+ *
+ * The mailbox file holds one shared mailbox address per line; blank lines and lines starting with '#'
+ * are ignored. All mailboxes are probed with the access token of 'mail.user'.
+ */
+public class FleetTester {
+
+    public static void run(Properties props, String userEmail, String accessToken, String mailboxFile) throws IOException, InterruptedException {
+        List<String> mailboxes = readMailboxes(mailboxFile);
+        if (mailboxes.isEmpty()) {
+            System.err.println("No mailboxes found in '" + mailboxFile + "'.");
+            return;
+        }
+
+        int threads = Integer.parseInt(props.getProperty("mail.fleet.threads", "64").trim());
+        int perHost = Integer.parseInt(props.getProperty("mail.fleet.per.host.concurrency", "16").trim());
+        HostLimiter limiter = new HostLimiter(perHost, props);
+        System.out.println("\n--- Fleet Test: " + mailboxes.size() + " mailboxes, " + threads + " workers, at most " + perHost + " connections per host ---");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "fleet-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<ProbeResult> completed = new ExecutorCompletionService<>(pool);
+        long start = System.nanoTime();
+        try {
+            for (String mailbox : mailboxes) {
+                completed.submit(() -> MailboxProbe.probe(props, userEmail, accessToken, mailbox, limiter));
+            }
+
+            int failures = 0;
+            for (int i = 0; i < mailboxes.size(); i++) {
+                ProbeResult result;
+                try {
+                    result = completed.take().get();
+                } catch (ExecutionException e) {
+                    failures++;
+                    System.err.println("FAIL  probe crashed: " + e.getCause());
+                    continue;
+                }
+                if (!result.isSuccess()) {
+                    failures++;
+                }
+                System.out.println(result.toLine());
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("\n==================================================================");
+            System.out.printf("Fleet test finished: %d passed, %d failed, %.1f s (%.1f mailboxes/s)%n",
+                    mailboxes.size() - failures, failures, seconds, mailboxes.size() / seconds);
+            System.out.println("Connection limits: " + limiter.describe());
+            System.out.println("==================================================================");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static List<String> readMailboxes(String mailboxFile) throws IOException {
+        List<String> mailboxes = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(mailboxFile), StandardCharsets.UTF_8)) {
+            String mailbox = line.trim();
+            if (!mailbox.isEmpty() && !mailbox.startsWith("#")) {
+                mailboxes.add(mailbox);
+            }
+        }
+        return mailboxes;
+    }
+}
@@ -0,0 +1,64 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The heap figures the scan and large message modes report, sampled as they run.
+ *
+ * The figure that matters is what each heap pool held after its latest collection
+ * ({@link MemoryPoolMXBean#getCollectionUsage}), which leaves out garbage. The heap in use at the sample,
+ * garbage included, only bounds it from above: it mostly shows how much young generation the JVM was given.
+ */
+public class HeapUsage {
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final List<MemoryPoolMXBean> HEAP_POOLS = new ArrayList<>();
+
+    static {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) HEAP_POOLS.add(pool);
+        }
+    }
+
+    private long peakAfterGc;
+    private long peakInUse;
+
+    /**
+     * Collects garbage and starts sampling from the heap that is left. Returns that heap.
+     */
+    long start() {
+        System.gc();
+        peakAfterGc = afterGc();
+        peakInUse = MEMORY.getHeapMemoryUsage().getUsed();
+        return peakAfterGc;
+    }
+
+    void sample() {
+        peakAfterGc = Math.max(peakAfterGc, afterGc());
+        peakInUse = Math.max(peakInUse, MEMORY.getHeapMemoryUsage().getUsed());
+    }
+
+    long peakAfterGc() {
+        return peakAfterGc;
+    }
+
+    long peakInUse() {
+        return peakInUse;
+    }
+
+    /**
+     * What the heap pools held after their latest collections: live data, as of those collections.
+     */
+    static long afterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : HEAP_POOLS) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) used += usage.getUsed();
+        }
+        return used;
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the number of simultaneous connections made to any one mail host, and backs off when the host
+ * throttles.
+ *
+ * Every host has a concurrency limit tuned by AIMD: it starts at the configured maximum, grows by one
+ * for every limit's worth of successful operations and halves when the host throttles (at most once per
+ * backoff, so a burst of throttled requests that were already in flight counts once). A throttle also
+ * closes the host until its Retry-After, or a doubling backoff with jitter when the server gave none.
+ * With 'mail.throttle.rate.per.second' set, a token bucket additionally limits how often operations start.
+ *
+ * One limiter belongs to one run, which signs in as one user, so its hosts are per tenant as well.
+ */
+public class HostLimiter {
+
+    private final int permitsPerHost;
+    private final double ratePerSecond;
+    private final double burst;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxRetries;
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private final class Host {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        double limit = permitsPerHost;
+        int inFlight;
+        double tokens = burst;
+        long refilledAt = System.nanoTime();
+        long closedUntil = System.nanoTime();
+        long lastDecrease = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+        int consecutiveThrottles;
+        long throttles;
+    }
+
+    public HostLimiter(int permitsPerHost) {
+        this(permitsPerHost, new Properties());
+    }
+
+    public HostLimiter(int permitsPerHost, Properties props) {
+        this.permitsPerHost = permitsPerHost;
+        this.ratePerSecond = Double.parseDouble(props.getProperty("mail.throttle.rate.per.second", "0").trim());
+        this.burst = Math.max(1, Double.parseDouble(props.getProperty("mail.throttle.burst", "1").trim()));
+        this.backoffMillis = Long.parseLong(props.getProperty("mail.throttle.backoff.ms", "2000").trim());
+        this.maxBackoffMillis = Long.parseLong(props.getProperty("mail.throttle.backoff.max.ms", "60000").trim());
+        this.maxRetries = Integer.parseInt(props.getProperty("mail.throttle.max.retries", "3").trim());
+    }
+
+    /**
+     * Waits until the host is open, below its concurrency limit and (if rate limited) has a token.
+     */
+    public void acquire(String host) throws InterruptedException {
+        Host h = host(host);
+        h.lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long waitNanos;
+                if (now - h.closedUntil < 0) {
+                    waitNanos = h.closedUntil - now;
+                } else if (h.inFlight >= (int) h.limit) {
+                    waitNanos = -1;
+                } else if (ratePerSecond <= 0) {
+                    h.inFlight++;
+                    return;
+                } else {
+                    h.tokens = Math.min(burst, h.tokens + (now - h.refilledAt) / 1e9 * ratePerSecond);
+                    h.refilledAt = now;
+                    if (h.tokens >= 1) {
+                        h.tokens--;
+                        h.inFlight++;
+                        return;
+                    }
+                    waitNanos = (long) ((1 - h.tokens) / ratePerSecond * 1e9);
+                }
+                if (waitNanos < 0) {
+                    h.changed.await();
+                } else {
+                    h.changed.awaitNanos(waitNanos);
+                }
+            }
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    public void release(String host) {
+        Host h = hosts.get(host);
+        h.lock.lock();
+        try {
+            h.inFlight--;
+            h.changed.signalAll();
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /**
+     * Reports an operation the host completed: the limit grows by one per limit's worth of these.
+     */
+    public void succeeded(String host) {
+        Host h = host(host);
+        h.lock.lock();
+        try {
+            h.consecutiveThrottles = 0;
+            if (h.limit < permitsPerHost) {
+                h.limit = Math.min(permitsPerHost, h.limit + 1 / h.limit);
+                h.changed.signalAll();
+            }
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /**
+     * Reports that the host throttled an operation: halves the limit and closes the host for the
+     * Retry-After, or for the backoff when the server did not say.
+     */
+    public void throttled(String host, Throttle throttle) {
+        Host h = host(host);
+        h.lock.lock();
+        try {
+            long now = System.nanoTime();
+            h.throttles++;
+            long backoff = Math.min(maxBackoffMillis, backoffMillis << Math.min(20, h.consecutiveThrottles));
+            long delayMillis = throttle.retryAfterMillis >= 0
+                    ? throttle.retryAfterMillis
+                    : backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            if (now - h.lastDecrease > TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 1))) {
+                h.limit = Math.max(1, h.limit / 2);
+                h.lastDecrease = now;
+                h.consecutiveThrottles++;
+            }
+            long until = now + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if (until - h.closedUntil > 0) h.closedUntil = until;
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long the host stays closed after a throttle, for callers that cannot block in {@link #acquire}.
+     */
+    public long closedMillis(String host) {
+        Host h = hosts.get(host);
+        if (h == null) return 0;
+        h.lock.lock();
+        try {
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(h.closedUntil - System.nanoTime()));
+        } finally {
+            h.lock.unlock();
+        }
+    }
+
+    /** How many times a throttled operation is retried ('mail.throttle.max.retries'). */
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Describes the current limit and throttle count of every host, e.g. for a run summary.
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        hosts.forEach((name, h) -> {
+            h.lock.lock();
+            try {
+                if (text.length() > 0) text.append(", ");
+                text.append(name).append(": limit ").append((int) h.limit).append(", throttled ").append(h.throttles).append('x');
+            } finally {
+                h.lock.unlock();
+            }
+        });
+        return text.toString();
+    }
+
+    private Host host(String host) {
+        return hosts.computeIfAbsent(host, name -> new Host());
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPMessage;
+
+/**
+ * Scan mode: measures how fast a (large) mailbox can be read over IMAP.
+ *
+ * Each folder is walked by UID, in windows of 'mail.scan.batch.size' UIDs up to the UIDNEXT seen when the
+ * folder was opened, so messages expunged or delivered during the scan neither shift nor repeat the walk;
+ * envelopes, flags, sizes and UIDs of a batch are prefetched with one UID FETCH. With
+ * 'mail.scan.fetch.bodies' the message bodies are also streamed in 'mail.scan.partial.fetch.size' chunks
+ * (IMAP partial fetch) into a reused buffer, so no body is ever held in memory whole. The folder is
+ * reopened every 'mail.scan.reopen.every' messages to drop the message objects Jakarta Mail caches per
+ * folder, which keeps the heap bounded for mailboxes with hundreds of thousands of items. The heap is
+ * reported as in large message mode (see {@link HeapUsage}).
+ */
+public class ImapScanBenchmark {
+
+    private final byte[] buffer = new byte[64 * 1024];
+    private long messages;
+    private long messageBytes;
+    private long bodyBytes;
+    private final HeapUsage heap = new HeapUsage();
+
+    public static void run(Properties props, String userEmail, String sharedMailbox, String accessToken) throws MessagingException, IOException {
+        String mailbox = props.getProperty("mail.scan.mailbox", "").trim();
+        if (mailbox.isEmpty()) {
+            mailbox = sharedMailbox == null || sharedMailbox.trim().isEmpty() ? userEmail : sharedMailbox.trim();
+        }
+        boolean fetchBodies = Boolean.parseBoolean(props.getProperty("mail.scan.fetch.bodies", "false").trim());
+        int batchSize = Integer.parseInt(props.getProperty("mail.scan.batch.size", "500").trim());
+        int reopenEvery = Integer.parseInt(props.getProperty("mail.scan.reopen.every", "10000").trim());
+
+        // Body streaming needs partial fetch, which the connection tests keep disabled.
+        Properties scanProps = new Properties();
+        scanProps.putAll(props);
+        scanProps.setProperty("mail.imap.partialfetch", Boolean.toString(fetchBodies));
+        scanProps.setProperty("mail.imap.fetchsize", props.getProperty("mail.scan.partial.fetch.size", "65536").trim());
+        scanProps.setProperty("mail.imap.peek", "true");
+
+        System.out.println("\n--- IMAP Scan Benchmark ---");
+        System.out.println("Mailbox '" + mailbox + "', batches of " + batchSize + (fetchBodies ? ", streaming bodies" : ", headers only"));
+
+        ImapScanBenchmark scan = new ImapScanBenchmark();
+        long heapBefore = scan.heap.start();
+        long start = System.nanoTime();
+        try (Store store = MailConnectionManager.session(scanProps).getStore("imap")) {
+            store.connect(props.getProperty("mail.imap.host"), Integer.parseInt(props.getProperty("mail.imap.port")), mailbox, accessToken);
+            for (String name : props.getProperty("mail.scan.folders", "INBOX").split(",")) {
+                scan.scanFolder(store, name.trim(), batchSize, reopenEvery, fetchBodies);
+            }
+        }
+        scan.report(System.nanoTime() - start, heapBefore);
+    }
+
+    private void scanFolder(Store store, String name, int batchSize, int reopenEvery, boolean fetchBodies) throws MessagingException, IOException {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(FetchProfile.Item.SIZE);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+
+        IMAPFolder folder = (IMAPFolder) store.getFolder(name);
+        folder.open(Folder.READ_ONLY);
+        long uidValidity = folder.getUIDValidity();
+        long end = uidNext(folder);
+        long folderStart = System.nanoTime();
+        long scanned = 0;
+        long firstUid = -1;
+        long lastUid = 0;
+        long window = batchSize;
+        int sinceReopen = 0;
+        try {
+            // Walk UID windows up to the UIDNEXT seen at the start: messages expunged meanwhile are skipped,
+            // ones delivered meanwhile are left out, and none is read twice. Gaps in the UIDs widen the window.
+            while (lastUid + 1 < end) {
+                if (sinceReopen >= reopenEvery) {
+                    folder.close(false);
+                    folder.open(Folder.READ_ONLY);
+                    if (folder.getUIDValidity() != uidValidity) {
+                        System.err.println(name + ": UIDVALIDITY changed while scanning, stopping at UID " + lastUid + ".");
+                        break;
+                    }
+                    sinceReopen = 0;
+                }
+                long to = Math.min(end - 1, lastUid + window);
+                long batchStart = System.nanoTime();
+                Message[] batch = folder.getMessagesByUID(lastUid + 1, to);
+                folder.fetch(batch, profile);
+                LatencyReport.record("scan.fetch_batch", System.nanoTime() - batchStart);
+
+                for (Message message : batch) {
+                    messageBytes += Math.max(0, message.getSize());
+                    if (fetchBodies) {
+                        bodyBytes += drain(((IMAPMessage) message).getRawInputStream());
+                    }
+                }
+                if (batch.length > 0 && firstUid < 0) firstUid = folder.getUID(batch[0]);
+                lastUid = to;
+                window = batch.length < batchSize / 2 ? Math.min(window * 2, 64L * batchSize) : batchSize;
+                scanned += batch.length;
+                messages += batch.length;
+                sinceReopen += batch.length;
+                heap.sample();
+            }
+        } finally {
+            folder.close(false);
+        }
+        double seconds = (System.nanoTime() - folderStart) / 1e9;
+        System.out.printf("%s: %d messages (UID %d..%d) in %.1f s%n", name, scanned, firstUid, lastUid, seconds);
+    }
+
+    /**
+     * The folder's UIDNEXT, or one past the UID of its last message if the server did not report it.
+     */
+    private static long uidNext(IMAPFolder folder) throws MessagingException {
+        long uidNext = folder.getUIDNext();
+        if (uidNext > 0) return uidNext;
+        int count = folder.getMessageCount();
+        return count == 0 ? 1 : folder.getUID(folder.getMessage(count)) + 1;
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long read = 0;
+        try (InputStream body = in) {
+            int n;
+            while ((n = body.read(buffer)) > 0) {
+                read += n;
+            }
+        }
+        heap.sample();
+        return read;
+    }
+
+    private void report(long elapsedNanos, long heapBefore) {
+        double seconds = elapsedNanos / 1e9;
+        double mb = 1024.0 * 1024.0;
+        System.out.println("\n==================================================================");
+        System.out.printf("Scanned %d messages (%.1f MB) in %.2f s: %.0f msgs/s, %.2f MB/s%n",
+                messages, messageBytes / mb, seconds, messages / seconds, messageBytes / mb / seconds);
+        if (bodyBytes > 0) {
+            System.out.printf("Body bytes streamed: %.1f MB (%.2f MB/s)%n", bodyBytes / mb, bodyBytes / mb / seconds);
+        }
+        System.out.printf("Heap after GC: %.1f MB before, peak %.1f MB while scanning (sampled)%n", heapBefore / mb, heap.peakAfterGc() / mb);
+        System.out.printf("Heap in use including garbage: peak %.1f MB while scanning (an upper bound)%n", heap.peakInUse() / mb);
+        System.out.println("==================================================================");
+    }
+}
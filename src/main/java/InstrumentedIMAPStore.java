@@ -0,0 +1,63 @@
+import java.io.IOException;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+
+import org.eclipse.angus.mail.iap.ProtocolException;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.eclipse.angus.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * IMAP store that records how long each step of logging in takes: DNS, TCP connect (via
+ * {@link ProbeSocketFactory}), TLS handshake plus server greeting, and AUTHENTICATE XOAUTH2.
+ */
+public class InstrumentedIMAPStore extends IMAPStore {
+
+    private boolean connecting;
+    private long phaseStart;
+
+    public InstrumentedIMAPStore(Session session, URLName url) {
+        super(session, url);
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        if (host != null) {
+            ProbeSocketFactory.timeDnsLookup(session, "imap", host);
+        }
+        ProbeSocketFactory.resetLastConnect();
+        connecting = true;
+        long start = System.nanoTime();
+        phaseStart = start;
+        try {
+            boolean connected = super.protocolConnect(host, port, user, password);
+            if (connected) {
+                long end = System.nanoTime();
+                LatencyReport.record("imap.auth", end - phaseStart);
+                LatencyReport.record("imap.connect_total", end - start);
+            }
+            return connected;
+        } finally {
+            connecting = false;
+        }
+    }
+
+    @Override
+    protected IMAPProtocol newIMAPProtocol(String host, int port) throws IOException, ProtocolException {
+        if (!connecting) return super.newIMAPProtocol(host, port);
+        long start = System.nanoTime();
+        IMAPProtocol protocol = super.newIMAPProtocol(host, port);
+        phaseStart = System.nanoTime();
+        LatencyReport.record("imap.tls_and_greeting", phaseStart - start - ProbeSocketFactory.lastConnectNanos());
+        return protocol;
+    }
+
+    @Override
+    protected void preLogin(IMAPProtocol p) throws ProtocolException {
+        super.preLogin(p);
+        if (connecting) {
+            phaseStart = System.nanoTime();
+        }
+    }
+}
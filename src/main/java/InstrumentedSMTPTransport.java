@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+
+import org.eclipse.angus.mail.smtp.SMTPTransport;
+
+/**
+ * SMTP transport that records how long each step of connecting takes: DNS, TCP connect (via
+ * {@link ProbeSocketFactory}), server greeting, EHLO, STARTTLS including the TLS handshake, the
+ * EHLO repeated over TLS, and AUTH XOAUTH2.
+ *
+ * While a {@link ProtocolTrace} is kept, tracing is suspended for the message data of DATA and of every
+ * BDAT chunk but the last, as Jakarta Mail itself does around AUTH: copying megabytes of base64 line by
+ * line into the trace would slow large sends down for a trace that keeps only commands and replies.
+ */
+public class InstrumentedSMTPTransport extends SMTPTransport {
+
+    private static final Method SUSPEND_TRACING = tracingMethod("suspendTracing");
+    private static final Method RESUME_TRACING = tracingMethod("resumeTracing");
+
+    private boolean connecting;
+    private int ehloCount;
+    private long phaseStart;
+    private boolean dataUntraced;
+
+    public InstrumentedSMTPTransport(Session session, URLName urlname) {
+        super(session, urlname);
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        ProbeSocketFactory.timeDnsLookup(session, "smtp", host == null || host.isEmpty() ? "localhost" : host);
+        ProbeSocketFactory.resetLastConnect();
+        connecting = true;
+        ehloCount = 0;
+        long start = System.nanoTime();
+        phaseStart = start;
+        try {
+            boolean connected = super.protocolConnect(host, port, user, password);
+            if (connected) {
+                long end = System.nanoTime();
+                LatencyReport.record("smtp.auth", end - phaseStart);
+                LatencyReport.record("smtp.connect_total", end - start);
+                LatencyReport.recordStartup();
+            }
+            return connected;
+        } finally {
+            connecting = false;
+        }
+    }
+
+    @Override
+    protected boolean ehlo(String domain) throws MessagingException {
+        if (!connecting) return super.ehlo(domain);
+        long start = System.nanoTime();
+        if (ehloCount++ == 0) {
+            LatencyReport.record("smtp.greeting", start - phaseStart - ProbeSocketFactory.lastConnectNanos());
+        }
+        try {
+            return super.ehlo(domain);
+        } finally {
+            phaseStart = System.nanoTime();
+            LatencyReport.record(ehloCount == 1 ? "smtp.ehlo" : "smtp.ehlo_after_starttls", phaseStart - start);
+        }
+    }
+
+    @Override
+    protected void startTLS() throws MessagingException {
+        long start = System.nanoTime();
+        try {
+            super.startTLS();
+        } finally {
+            phaseStart = System.nanoTime();
+            if (connecting) {
+                LatencyReport.record("smtp.starttls", phaseStart - start);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        try {
+            super.sendMessage(message, addresses);
+        } finally {
+            traceData(true);
+        }
+    }
+
+    @Override
+    protected OutputStream data() throws MessagingException {
+        OutputStream out = super.data();
+        traceData(false);
+        return out;
+    }
+
+    @Override
+    protected void finishData() throws IOException, MessagingException {
+        traceData(true);
+        super.finishData();
+    }
+
+    @Override
+    protected OutputStream bdat() throws MessagingException {
+        OutputStream out = super.bdat();
+        if (traceData(false)) ProtocolTrace.note("[BDAT chunks before the last, if any, not traced]");
+        return out;
+    }
+
+    @Override
+    protected void finishBdat() throws IOException, MessagingException {
+        traceData(true);
+        super.finishBdat();
+    }
+
+    /**
+     * Suspends or resumes protocol tracing around message data. Returns true if tracing was suspended.
+     */
+    private boolean traceData(boolean on) {
+        if (on != dataUntraced || SUSPEND_TRACING == null || RESUME_TRACING == null) return false;
+        if (!on && !ProtocolTrace.isEnabled()) return false;
+        try {
+            (on ? RESUME_TRACING : SUSPEND_TRACING).invoke(this);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+        dataUntraced = !on;
+        return true;
+    }
+
+    private static Method tracingMethod(String name) {
+        try {
+            Method method = SMTPTransport.class.getDeclaredMethod(name);
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
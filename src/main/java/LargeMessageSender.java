@@ -0,0 +1,276 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+
+import org.eclipse.angus.mail.smtp.SMTPTransport;
+
+/**
+ * Large message mode: sends one attachment-heavy message (25 to 150 MB is typical) through the Send As
+ * path and reports the send throughput and the peak heap still in use after garbage collection.
+ *
+ * Attachments are read from the files in 'mail.large.attachments' or generated on the fly in the sizes
+ * of 'mail.large.attachment.sizes.mb'. Either way they are streamed: every part is backed by a data source
+ * that is only opened while the message is written to the connection, and the transfer encoding is set up
+ * front so Jakarta Mail does not read the data an extra time to choose one. When the server advertises
+ * CHUNKING and 'mail.large.chunksize' is set, the message goes out in BDAT chunks of that size instead of
+ * DATA, which spares the dot-stuffing pass; only this mode's own session does so, other modes keep DATA.
+ * The heap therefore stays at a few MB whatever the message size.
+ *
+ * The heap is sampled every megabyte sent; see {@link HeapUsage} for what the two reported figures mean.
+ */
+public class LargeMessageSender {
+
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final HeapUsage heap = new HeapUsage();
+    private long attachmentBytes;
+
+    public static void run(Properties props, String userEmail, String sharedMailbox, String accessToken) throws MessagingException, IOException {
+        String recipient = props.getProperty("mail.test.recipient", "").trim();
+        if (recipient.isEmpty()) {
+            System.err.println("Large message mode needs 'mail.test.recipient' to be set.");
+            return;
+        }
+        String from = sharedMailbox == null || sharedMailbox.trim().isEmpty() ? userEmail : sharedMailbox.trim();
+
+        LargeMessageSender sender = new LargeMessageSender();
+        List<Sized> attachments = sender.attachments(props);
+        if (attachments == null) return;
+        long total = 0;
+        for (Sized attachment : attachments) {
+            total += attachment.size();
+        }
+        System.out.println("\n--- Large Message Send ---");
+        System.out.printf("%d attachment(s), %.1f MB, from '%s' to '%s'%n", attachments.size(), total / MB, from, recipient);
+
+        Properties largeProps = new Properties();
+        largeProps.putAll(props);
+        largeProps.setProperty("mail.smtp.chunksize", props.getProperty("mail.large.chunksize", "1048576").trim());
+        sender.send(largeProps, userEmail, accessToken, from, recipient, attachments);
+    }
+
+    /** A data source that knows its length up front. */
+    private interface Sized extends DataSource {
+        long size();
+    }
+
+    private List<Sized> attachments(Properties props) {
+        List<Sized> attachments = new ArrayList<>();
+        String files = props.getProperty("mail.large.attachments", "").trim();
+        if (!files.isEmpty()) {
+            for (String path : files.split(",")) {
+                File file = new File(path.trim());
+                if (!file.isFile()) {
+                    System.err.println("Attachment '" + file + "' does not exist or is not a file.");
+                    return null;
+                }
+                attachments.add(new FileSource(file));
+            }
+            return attachments;
+        }
+        int index = 1;
+        for (String size : props.getProperty("mail.large.attachment.sizes.mb", "25").split(",")) {
+            if (size.trim().isEmpty()) continue;
+            long bytes = (long) (Double.parseDouble(size.trim()) * MB);
+            attachments.add(new GeneratedSource("generated-" + index++ + ".bin", bytes));
+        }
+        return attachments;
+    }
+
+    private void send(Properties props, String userEmail, String accessToken, String from, String recipient,
+                      List<Sized> attachments) throws MessagingException {
+        long heapBefore = heap.start();
+
+        try (MailConnectionManager.Lease<Transport> lease = MailConnectionManager.smtp(props, userEmail, accessToken, true)) {
+            MimeMessage message = new MimeMessage(MailConnectionManager.session(props));
+            message.setFrom(new InternetAddress(from));
+            message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipient));
+            message.setSubject("OAuth Connection Tester - Large Message Test");
+            message.setSentDate(new Date());
+
+            MimeMultipart content = new MimeMultipart();
+            MimeBodyPart text = new MimeBodyPart();
+            text.setText("Large message test sent by the OAuth Connection Tester on behalf of " + from + ".", "us-ascii");
+            content.addBodyPart(text);
+            for (Sized attachment : attachments) {
+                MimeBodyPart part = new MimeBodyPart();
+                part.setDataHandler(new DataHandler(attachment));
+                part.setFileName(attachment.getName());
+                part.setHeader("Content-Transfer-Encoding", "base64");
+                content.addBodyPart(part);
+            }
+            message.setContent(content);
+            message.saveChanges();
+
+            SMTPTransport transport = (SMTPTransport) lease.get();
+            boolean chunking = transport.supportsExtension("CHUNKING")
+                    && Integer.parseInt(props.getProperty("mail.smtp.chunksize", "0").trim()) > 0;
+            System.out.println("Sending with " + (chunking ? "BDAT (CHUNKING, " + props.getProperty("mail.smtp.chunksize").trim() + " byte chunks)" : "DATA") + "...");
+
+            long start = System.nanoTime();
+            try {
+                transport.sendMessage(message, message.getAllRecipients());
+            } catch (MessagingException e) {
+                lease.invalidate();
+                throw e;
+            }
+            long elapsed = System.nanoTime() - start;
+            LatencyReport.record("smtp.send_large", elapsed);
+            report(elapsed, heapBefore, transport.getLastServerResponse());
+        }
+    }
+
+    private void report(long elapsedNanos, long heapBefore, String serverResponse) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("\n==================================================================");
+        System.out.printf("Sent %.1f MB of attachments in %.2f s: %.2f MB/s (about %.2f MB/s on the wire with base64)%n",
+                attachmentBytes / MB, seconds, attachmentBytes / MB / seconds, attachmentBytes * 4 / 3.0 / MB / seconds);
+        System.out.printf("Heap after GC: %.1f MB before, peak %.1f MB while sending (sampled)%n", heapBefore / MB, heap.peakAfterGc() / MB);
+        System.out.printf("Heap in use including garbage: peak %.1f MB while sending (an upper bound)%n", heap.peakInUse() / MB);
+        System.out.println("Server: " + (serverResponse == null ? "" : serverResponse.trim()));
+        System.out.println("==================================================================");
+    }
+
+    /**
+     * Counts the attachment bytes read and samples the heap every megabyte.
+     */
+    private final class MeteredInputStream extends FilterInputStream {
+        private long sinceSample;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        private void count(int n) {
+            attachmentBytes += n;
+            sinceSample += n;
+            if (sinceSample >= 1024 * 1024) {
+                sinceSample = 0;
+                heap.sample();
+            }
+        }
+    }
+
+    private final class FileSource implements Sized {
+        private final File file;
+
+        FileSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new MeteredInputStream(new FileInputStream(file));
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Attachments are read-only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        @Override
+        public long size() {
+            return file.length();
+        }
+    }
+
+    /**
+     * Incompressible bytes of a fixed length, produced as they are read by repeating one random block.
+     */
+    private final class GeneratedSource implements Sized {
+        private final String name;
+        private final long size;
+
+        GeneratedSource(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            byte[] block = new byte[64 * 1024];
+            new Random(size).nextBytes(block);
+            return new MeteredInputStream(new InputStream() {
+                private long remaining = size;
+
+                @Override
+                public int read() {
+                    if (remaining <= 0) return -1;
+                    return block[(int) ((size - remaining--) % block.length)] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    if (remaining <= 0) return -1;
+                    int at = (int) ((size - remaining) % block.length);
+                    int n = (int) Math.min(Math.min(length, block.length - at), remaining);
+                    System.arraycopy(block, at, buffer, offset, n);
+                    remaining -= n;
+                    return n;
+                }
+            });
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Attachments are read-only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+    }
+}
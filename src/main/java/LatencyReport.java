@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Collects per-phase latency histograms for the whole run (DNS, TCP connect, TLS, EHLO, AUTH, SELECT,
+ * token requests, ...) and writes them as a JSON report when the run ends.
+ */
+public class LatencyReport {
+
+    static final String STARTUP_PHASE = "startup.first_smtp_connect";
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> phases = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> LIVE = Collections.unmodifiableMap(phases);
+    private static final AtomicBoolean startupRecorded = new AtomicBoolean();
+    private static final AtomicLong signInNanos = new AtomicLong();
+    private static final ThreadLocal<long[]> captured = new ThreadLocal<>();
+
+    public static void record(String phase, long nanos) {
+        histogram(phase).recordNanos(nanos);
+        long[] phaseNanos = captured.get();
+        if (phaseNanos != null) {
+            ResultsLog.addPhase(phaseNanos, phase, nanos);
+        }
+    }
+
+    /**
+     * Also adds the phases recorded on this thread to the given array (see {@link ResultsLog#PHASES}),
+     * until called again with null.
+     */
+    static void capture(long[] phaseNanos) {
+        if (phaseNanos == null) {
+            captured.remove();
+        } else {
+            captured.set(phaseNanos);
+        }
+    }
+
+    /**
+     * Records the time from JVM launch to the first authenticated SMTP connection, once per run, less
+     * any interactive sign-in. The clock is read before the management classes are loaded, so loading
+     * them is not counted.
+     */
+    static void recordStartup() {
+        if (!startupRecorded.compareAndSet(false, true)) return;
+        long now = System.currentTimeMillis();
+        long launched = ManagementFactory.getRuntimeMXBean().getStartTime();
+        record(STARTUP_PHASE, Math.max(0, TimeUnit.MILLISECONDS.toNanos(now - launched) - signInNanos.get()));
+    }
+
+    /**
+     * Leaves time spent waiting for the user to sign in out of the startup time.
+     */
+    static void excludeFromStartup(long nanos) {
+        signInNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Prints the startup-to-first-probe time, if it was recorded.
+     */
+    static void printStartup() {
+        LatencyHistogram startup = phases.get(STARTUP_PHASE);
+        if (startup != null) {
+            long signIn = TimeUnit.NANOSECONDS.toMillis(signInNanos.get());
+            System.out.println("\nStartup to first SMTP connection: " + startup.maxMicros() / 1000 + " ms"
+                    + (signIn > 0 ? " (not counting " + signIn + " ms of interactive sign-in)" : ""));
+        }
+    }
+
+    public static LatencyHistogram histogram(String phase) {
+        LatencyHistogram histogram = phases.get(phase);
+        return histogram != null ? histogram : phases.computeIfAbsent(phase, p -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns a read-only view of the live histograms, in no particular order, without copying them.
+     */
+    static Map<String, LatencyHistogram> live() {
+        return LIVE;
+    }
+
+    /**
+     * Returns the histograms recorded so far, sorted by phase name.
+     */
+    public static Map<String, LatencyHistogram> snapshot() {
+        return new TreeMap<>(phases);
+    }
+
+    public static JSONObject toJson() {
+        JSONObject report = new JSONObject();
+        report.put("generated", Instant.now().toString());
+        JSONObject phaseJson = new JSONObject();
+        for (Map.Entry<String, LatencyHistogram> entry : snapshot().entrySet()) {
+            phaseJson.put(entry.getKey(), toJson(entry.getValue()));
+        }
+        report.put("phases", phaseJson);
+        return report;
+    }
+
+    /**
+     * Summarises a histogram in milliseconds. The non-empty buckets are included, keyed by their upper
+     * bound in microseconds, so reports from several runs can be merged.
+     */
+    static JSONObject toJson(LatencyHistogram histogram) {
+        JSONObject json = new JSONObject();
+        json.put("count", histogram.count());
+        json.put("mean_ms", histogram.meanMicros() / 1000.0);
+        json.put("p50_ms", histogram.percentileMicros(50) / 1000.0);
+        json.put("p90_ms", histogram.percentileMicros(90) / 1000.0);
+        json.put("p99_ms", histogram.percentileMicros(99) / 1000.0);
+        json.put("max_ms", histogram.maxMicros() / 1000.0);
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long count = histogram.bucketCount(i);
+            if (count != 0) {
+                buckets.put(Long.toString(LatencyHistogram.upperBoundMicros(i)), count);
+            }
+        }
+        json.put("buckets_us", buckets);
+        return json;
+    }
+
+    /**
+     * Writes the report to 'mail.report.file', if set and anything was recorded.
+     */
+    public static void write(Properties props) {
+        String file = props.getProperty("mail.report.file", "").trim();
+        if (file.isEmpty() || phases.isEmpty()) return;
+        try {
+            Files.write(Paths.get(file), toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+            System.out.println("\nLatency report written to " + file);
+        } catch (IOException e) {
+            System.err.println("Could not write latency report '" + file + "': " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.NoSuchProviderException;
+import jakarta.mail.Provider;
+import jakarta.mail.Service;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.Transport;
+
+/**
+ * Caches one mail {@link Session} per configuration and pools authenticated SMTP transports and IMAP
+ * stores per (protocol, host, port, user), so that consecutive probes and sends skip the TCP, TLS and
+ * XOAUTH2 handshake.
+ *
+ * Idle connections are evicted after 'mail.smtp.connectionpooltimeout' / 'mail.imap.connectionpooltimeout'
+ * milliseconds, and at most 'mail.pool.max.idle' are kept per host (the oldest are closed first). A
+ * connection that has been idle for more than 'mail.pool.validate.after.ms' is health-checked with a NOOP
+ * before it is handed out again.
+ */
+public class MailConnectionManager {
+
+    /**
+     * A borrowed connection. Closing the lease returns the connection to the pool, unless it was
+     * invalidated because an operation on it failed, in which case it is closed.
+     */
+    public static final class Lease<T extends Service> implements AutoCloseable {
+        private final String key;
+        private final T service;
+        private final long idleTimeoutMillis;
+        private final int maxIdlePerHost;
+        private boolean broken;
+
+        private Lease(String key, T service, long idleTimeoutMillis, int maxIdlePerHost) {
+            this.key = key;
+            this.service = service;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.maxIdlePerHost = maxIdlePerHost;
+        }
+
+        public T get() {
+            return service;
+        }
+
+        public void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (broken) {
+                closeQuietly(service);
+            } else {
+                release(key, service, idleTimeoutMillis, maxIdlePerHost);
+            }
+        }
+    }
+
+    private static final class Idle {
+        final String key;
+        final Service service;
+        final long idleSince = System.nanoTime();
+        final long idleTimeoutMillis;
+
+        Idle(String key, Service service, long idleTimeoutMillis) {
+            this.key = key;
+            this.service = service;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        long idleMillis() {
+            return (System.nanoTime() - idleSince) / 1_000_000;
+        }
+    }
+
+    private static final Map<Properties, Session> sessions = Collections.synchronizedMap(new IdentityHashMap<>());
+    private static final ConcurrentHashMap<String, Deque<Idle>> pool = new ConcurrentHashMap<>();
+    // The idle connections of every user on one (protocol, host, port), most recently used first.
+    private static final ConcurrentHashMap<String, Deque<Idle>> idleByHost = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the shared session for this configuration, creating it on first use.
+     */
+    public static Session session(Properties props) {
+        return sessions.computeIfAbsent(props, MailConnectionManager::newSession);
+    }
+
+    /**
+     * Creates a session whose SMTP and IMAP providers record per-phase latencies. The timing socket
+     * factories, and the shared TLS session cache, are only installed where the configuration does not
+     * name a socket factory of its own.
+     */
+    static Session newSession(Properties props) {
+        Properties sessionProps = new Properties();
+        sessionProps.putAll(props);
+        TlsSessionCache tls = TlsSessionCache.create(props);
+        for (String protocol : new String[]{"smtp", "imap"}) {
+            String prefix = "mail." + protocol + ".socketFactory";
+            String sslPrefix = "mail." + protocol + ".ssl.socketFactory";
+            boolean implicitTls = Boolean.parseBoolean(props.getProperty("mail." + protocol + ".ssl.enable", "false").trim());
+            boolean ownSslFactory = sessionProps.containsKey(sslPrefix) || sessionProps.containsKey(sslPrefix + ".class");
+            if (!sessionProps.containsKey(prefix) && !sessionProps.containsKey(prefix + ".class")) {
+                sessionProps.put(prefix, new ProbeSocketFactory(protocol, props, implicitTls && !ownSslFactory ? tls : null));
+            }
+            if (tls != null && !implicitTls && !ownSslFactory) {
+                sessionProps.put(sslPrefix, tls.socketFactory(protocol));
+            }
+        }
+
+        Session session = Session.getInstance(sessionProps);
+        try {
+            session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", InstrumentedSMTPTransport.class.getName(), "Inbotiqa", "3.0.0"));
+            session.setProvider(new Provider(Provider.Type.STORE, "imap", InstrumentedIMAPStore.class.getName(), "Inbotiqa", "3.0.0"));
+        } catch (NoSuchProviderException e) {
+            throw new IllegalStateException("Could not register the instrumented mail providers", e);
+        }
+        ProtocolTrace.install(session, props);
+        return session;
+    }
+
+    /**
+     * Borrows an SMTP transport connected to 'mail.smtp.host' and authenticated as the user.
+     */
+    public static Lease<Transport> smtp(Properties props, String user, String accessToken) throws MessagingException {
+        return smtp(props, user, accessToken, false);
+    }
+
+    /**
+     * Like {@link #smtp(Properties, String, String)}, but with 'fresh' set always opens and authenticates a new
+     * connection, which joins the pool when the lease is closed. Connectivity checks use this, since a pooled
+     * connection would pass them without exercising the connect, TLS or XOAUTH2 steps.
+     */
+    public static Lease<Transport> smtp(Properties props, String user, String accessToken, boolean fresh) throws MessagingException {
+        String host = props.getProperty("mail.smtp.host");
+        int port = Integer.parseInt(props.getProperty("mail.smtp.port"));
+        long timeout = Long.parseLong(props.getProperty("mail.smtp.connectionpooltimeout", "60000").trim());
+        String key = "smtp|" + host + "|" + port + "|" + user;
+
+        Transport transport = fresh ? null : (Transport) borrow(props, key);
+        if (transport == null) {
+            transport = session(props).getTransport("smtp");
+            transport.connect(host, port, user, accessToken);
+        }
+        return new Lease<>(key, transport, timeout, maxIdle(props));
+    }
+
+    /**
+     * Borrows an IMAP store connected to 'mail.imap.host' and logged in as the given login user.
+     */
+    public static Lease<Store> imap(Properties props, String loginUser, String accessToken) throws MessagingException {
+        String host = props.getProperty("mail.imap.host");
+        int port = Integer.parseInt(props.getProperty("mail.imap.port"));
+        long timeout = Long.parseLong(props.getProperty("mail.imap.connectionpooltimeout", "60000").trim());
+        String key = "imap|" + host + "|" + port + "|" + loginUser;
+
+        Store store = (Store) borrow(props, key);
+        if (store == null) {
+            store = session(props).getStore("imap");
+            store.connect(host, port, loginUser, accessToken);
+        }
+        return new Lease<>(key, store, timeout, maxIdle(props));
+    }
+
+    /**
+     * Closes every pooled connection. Called once a run is complete.
+     */
+    public static void closeAll() {
+        for (Deque<Idle> idle : pool.values()) {
+            Idle entry;
+            while ((entry = idle.pollFirst()) != null) {
+                hostIdle(entry.key).removeFirstOccurrence(entry);
+                closeQuietly(entry.service);
+            }
+        }
+    }
+
+    private static Service borrow(Properties props, String key) {
+        Deque<Idle> idle = pool.get(key);
+        if (idle == null) return null;
+        long validateAfter = Long.parseLong(props.getProperty("mail.pool.validate.after.ms", "1000").trim());
+
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            hostIdle(key).removeFirstOccurrence(entry);
+            long idleMillis = entry.idleMillis();
+            if (idleMillis > entry.idleTimeoutMillis) {
+                closeQuietly(entry.service);
+            } else if (idleMillis > validateAfter && !entry.service.isConnected()) {
+                // isConnected() sends a NOOP, so this also catches connections the server has dropped.
+                closeQuietly(entry.service);
+            } else {
+                return entry.service;
+            }
+        }
+        return null;
+    }
+
+    private static void release(String key, Service service, long idleTimeoutMillis, int maxIdlePerHost) {
+        Deque<Idle> idle = pool.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>());
+        Deque<Idle> hostIdle = hostIdle(key);
+        Idle released = new Idle(key, service, idleTimeoutMillis);
+        hostIdle.offerFirst(released);
+        idle.offerFirst(released);
+
+        // The least recently used connections sit at the tail; drop those past their idle timeout.
+        Idle oldest;
+        while ((oldest = idle.peekLast()) != null && oldest.idleMillis() > oldest.idleTimeoutMillis) {
+            if (idle.removeLastOccurrence(oldest)) {
+                hostIdle.removeFirstOccurrence(oldest);
+                closeQuietly(oldest.service);
+            }
+        }
+        // Then close the oldest idle connections to the host, whichever user they belong to, beyond the cap.
+        while (hostIdle.size() > maxIdlePerHost && (oldest = hostIdle.pollLast()) != null) {
+            if (pool.get(oldest.key).removeFirstOccurrence(oldest)) {
+                closeQuietly(oldest.service);
+            }
+        }
+    }
+
+    /** The per-host list a pool key belongs to: the key without its user. */
+    private static Deque<Idle> hostIdle(String key) {
+        return idleByHost.computeIfAbsent(key.substring(0, key.lastIndexOf('|')), k -> new ConcurrentLinkedDeque<>());
+    }
+
+    private static int maxIdle(Properties props) {
+        return Integer.parseInt(props.getProperty("mail.pool.max.idle", "32").trim());
+    }
+
+    private static void closeQuietly(Service service) {
+        try {
+            service.close();
+        } catch (MessagingException e) {
+            // The connection is being discarded; nothing useful to do with the error.
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Properties;
+
+import jakarta.mail.MessagingException;
+
+/**
+ * Runs the SMTP, shared mailbox read and Send As checks for one mailbox without printing to the console,
+ * following the same order and skip rules as {@link SmtpConnectionTester#runConnectionTests}. Every
+ * result is appended to the {@link ResultsLog}, and failed or slow probes leave a {@link ProtocolTrace}.
+ */
+public class MailboxProbe {
+
+    /**
+     * Probes one shared mailbox, holding a per-host permit from the limiter for every connection it opens.
+     */
+    public static ProbeResult probe(Properties props, String userEmail, String accessToken, String sharedMailbox, HostLimiter limiter)
+            throws InterruptedException {
+        return probe(props, userEmail, accessToken, sharedMailbox, limiter, true);
+    }
+
+    /**
+     * Probes one shared mailbox. Without a shared mailbox only the SMTP check runs; the Send As check
+     * runs only when allowed and 'mail.test.recipient' is set. Throttled checks are retried as the
+     * limiter allows, and only count as failed when they stay throttled.
+     */
+    public static ProbeResult probe(Properties props, String userEmail, String accessToken, String sharedMailbox, HostLimiter limiter,
+                                    boolean sendAs) throws InterruptedException {
+        final String smtpHost = props.getProperty("mail.smtp.host");
+        final String imapHost = props.getProperty("mail.imap.host");
+        final String testRecipient = props.getProperty("mail.test.recipient");
+        ProbeResult result = new ProbeResult(sharedMailbox == null || sharedMailbox.trim().isEmpty() ? userEmail : sharedMailbox);
+        long start = System.nanoTime();
+        ProtocolTrace.begin();
+        try {
+            runCheck(result, ProbeResult.SMTP, limiter, smtpHost,
+                    () -> SmtpConnectionTester.connectSmtp(props, userEmail, accessToken));
+            result.smtp = ProbeResult.Status.OK;
+
+            if (sharedMailbox == null || sharedMailbox.trim().isEmpty()) {
+                return finish(props, result, start);
+            }
+
+            runCheck(result, ProbeResult.IMAP, limiter, imapHost,
+                    () -> result.messageCount = SmtpConnectionTester.readSharedInbox(props, accessToken, sharedMailbox));
+            result.imap = ProbeResult.Status.OK;
+
+            if (sendAs && testRecipient != null && !testRecipient.trim().isEmpty()) {
+                runCheck(result, ProbeResult.SEND_AS, limiter, smtpHost,
+                        () -> SmtpConnectionTester.sendAsTestMessage(props, userEmail, accessToken, sharedMailbox, testRecipient));
+                result.sendAs = ProbeResult.Status.OK;
+            }
+        } catch (MessagingException | RuntimeException e) {
+            result.fail(e);
+        }
+        return finish(props, result, start);
+    }
+
+    private interface Check {
+        void run() throws MessagingException;
+    }
+
+    /**
+     * Runs one check while holding a permit for its host. When the host throttles, the limiter is told
+     * and the check is retried (once the limiter lets it through again) up to its retry limit.
+     */
+    private static void runCheck(ProbeResult result, int check, HostLimiter limiter, String host, Check body)
+            throws MessagingException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            limiter.acquire(host);
+            long checkStart = result.beginCheck(check);
+            try {
+                body.run();
+                limiter.succeeded(host);
+                return;
+            } catch (MessagingException | RuntimeException e) {
+                Throttle throttle = Throttle.of(e);
+                if (throttle == null) throw e;
+                limiter.throttled(host, throttle);
+                result.throttles++;
+                if (attempt >= limiter.maxRetries()) throw e;
+            } finally {
+                result.endCheck(check, checkStart);
+                limiter.release(host);
+            }
+        }
+    }
+
+    private static ProbeResult finish(Properties props, ProbeResult result, long start) {
+        result.elapsedNanos = System.nanoTime() - start;
+        ProtocolTrace.end(result.mailbox, !result.isSuccess(), result.elapsedNanos);
+        ResultsLog.append(props, result);
+        return result;
+    }
+}
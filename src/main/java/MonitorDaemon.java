@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.mail.MessagingException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Daemon mode: runs the connection checks on a fixed schedule (with random jitter) for as long as the
+ * process lives, and serves success counters and phase latency summaries in the Prometheus text
+ * format on http://host:port/metrics.
+ *
+ * The token obtained at startup is reused between cycles and renewed through {@link OAuthTokenCache}
+ * before it expires. Every cycle starts from an empty connection pool, so each check connects, negotiates
+ * TLS and authenticates. Scrapes are handled on the HTTP server's single dispatcher thread, which reuses
+ * one text buffer, precomputed labels and the live histograms, so frequent scrapes neither allocate much
+ * nor contend with the probe thread.
+ *
+ * With 'mail.daemon.delivery' set, every cycle also sends one {@link DeliveryProbe}, whose arrival is
+ * picked up by a single IDLE connection kept open for the life of the daemon.
+ */
+public class MonitorDaemon {
+
+    private static final ProbeResult.Status[] STATUSES = ProbeResult.Status.values();
+    private static final String[] CHECKS = {"smtp", "imap", "send_as"};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99"};
+    // mailtester_probe_total{check="...",outcome="..."}, indexed by [check][status].
+    private static final String[][] PROBE_SERIES = new String[CHECKS.length][STATUSES.length];
+
+    static {
+        for (int c = 0; c < CHECKS.length; c++) {
+            for (int s = 0; s < STATUSES.length; s++) {
+                PROBE_SERIES[c][s] = "mailtester_probe_total{check=\"" + CHECKS[c] + "\",outcome=\""
+                        + STATUSES[s].name().toLowerCase() + "\"} ";
+            }
+        }
+    }
+
+    private final Properties props;
+    private final String userEmail;
+    private final String sharedMailbox;
+    private final HostLimiter limiter;
+    private DeliveryProbe delivery;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "monitor-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Indexed by [check][status].
+    private final LongAdder[][] probeCounts = new LongAdder[CHECKS.length][STATUSES.length];
+    private final LongAdder cycles = new LongAdder();
+    private final LongAdder tokenFailures = new LongAdder();
+    private final AtomicLong lastCycleEpochSeconds = new AtomicLong();
+    private final AtomicLong lastCycleSuccess = new AtomicLong();
+
+    // Only touched by the HTTP dispatcher thread.
+    private final StringBuilder text = new StringBuilder(16 * 1024);
+    private byte[] body = new byte[16 * 1024];
+
+    private MonitorDaemon(Properties props, String userEmail, String sharedMailbox) {
+        this.props = props;
+        this.userEmail = userEmail;
+        this.sharedMailbox = sharedMailbox;
+        this.limiter = new HostLimiter(Integer.parseInt(props.getProperty("mail.daemon.per.host.concurrency", "1").trim()), props);
+        for (LongAdder[] row : probeCounts) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Starts the metrics endpoint and the probe schedule, then blocks until the process is stopped.
+     */
+    public static void run(Properties props, String userEmail, String sharedMailbox) throws IOException, InterruptedException {
+        MonitorDaemon daemon = new MonitorDaemon(props, userEmail, sharedMailbox);
+        int port = Integer.parseInt(props.getProperty("mail.daemon.metrics.port", "9464").trim());
+        long intervalMillis = Long.parseLong(props.getProperty("mail.daemon.interval.seconds", "60").trim()) * 1000L;
+        long jitterMillis = Long.parseLong(props.getProperty("mail.daemon.jitter.seconds", "5").trim()) * 1000L;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", daemon::serveMetrics);
+        server.setExecutor(null);
+        server.start();
+
+        if (Boolean.parseBoolean(props.getProperty("mail.daemon.delivery", "false").trim())) {
+            daemon.delivery = DeliveryProbe.start(props, userEmail, DeliveryProbe.watchedMailbox(props, userEmail, sharedMailbox),
+                    () -> OAuthTokenCache.getAccessToken(props, userEmail, null));
+        }
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            daemon.scheduler.shutdownNow();
+            server.stop(0);
+            if (daemon.delivery != null) daemon.delivery.close();
+            MailConnectionManager.closeAll();
+            ProtocolTrace.close();
+            ResultsLog.close();
+            stopped.countDown();
+        }));
+
+        System.out.println("\n--- Monitoring Daemon ---");
+        System.out.println("Probing every " + intervalMillis / 1000 + " s (+ up to " + jitterMillis / 1000 + " s jitter); metrics on http://localhost:" + port + "/metrics");
+        daemon.scheduleNext(0, intervalMillis, jitterMillis);
+        stopped.await();
+    }
+
+    private void scheduleNext(long delayMillis, long intervalMillis, long jitterMillis) {
+        scheduler.schedule(() -> {
+            long start = System.currentTimeMillis();
+            runCycle();
+            long jitter = jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0;
+            long next = Math.max(0, intervalMillis - (System.currentTimeMillis() - start)) + jitter;
+            scheduleNext(next, intervalMillis, jitterMillis);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runCycle() {
+        cycles.increment();
+        lastCycleEpochSeconds.set(System.currentTimeMillis() / 1000L);
+        String accessToken;
+        try {
+            accessToken = OAuthTokenCache.getAccessToken(props, userEmail, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException | RuntimeException e) {
+            tokenFailures.increment();
+            lastCycleSuccess.set(0);
+            System.err.println("Could not obtain an access token for this cycle: " + e.getMessage());
+            return;
+        }
+
+        // Connections pooled by the last cycle would let this one skip connect, TLS and XOAUTH2 entirely.
+        MailConnectionManager.closeAll();
+        try {
+            boolean sendAs = Boolean.parseBoolean(props.getProperty("mail.daemon.send.as", "false").trim());
+            ProbeResult result = MailboxProbe.probe(props, userEmail, accessToken, sharedMailbox, limiter, sendAs);
+            probeCounts[0][result.smtp.ordinal()].increment();
+            probeCounts[1][result.imap.ordinal()].increment();
+            probeCounts[2][result.sendAs.ordinal()].increment();
+            LatencyReport.record("probe.total", result.elapsedNanos);
+            lastCycleSuccess.set(result.isSuccess() ? 1 : 0);
+            if (!result.isSuccess()) {
+                System.err.println(result.toLine());
+            }
+            if (delivery != null) {
+                try {
+                    delivery.send(accessToken);
+                } catch (MessagingException e) {
+                    System.err.println("Delivery probe could not be sent: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            lastCycleSuccess.set(0);
+            System.err.println("Probe cycle failed: " + e);
+        }
+        try {
+            ResultsLog.flush();
+        } catch (RuntimeException e) {
+            System.err.println("Could not flush the results log: " + e.getMessage());
+        }
+    }
+
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        StringBuilder out = text;
+        out.setLength(0);
+
+        out.append("# HELP mailtester_probe_total Connection checks by check and outcome.\n");
+        out.append("# TYPE mailtester_probe_total counter\n");
+        for (int c = 0; c < CHECKS.length; c++) {
+            for (int s = 0; s < STATUSES.length; s++) {
+                out.append(PROBE_SERIES[c][s]).append(probeCounts[c][s].sum()).append('\n');
+            }
+        }
+        out.append("# HELP mailtester_cycles_total Probe cycles started.\n");
+        out.append("# TYPE mailtester_cycles_total counter\n");
+        out.append("mailtester_cycles_total ").append(cycles.sum()).append('\n');
+        out.append("# HELP mailtester_token_failures_total Cycles skipped because no access token could be obtained.\n");
+        out.append("# TYPE mailtester_token_failures_total counter\n");
+        out.append("mailtester_token_failures_total ").append(tokenFailures.sum()).append('\n');
+        out.append("# HELP mailtester_last_cycle_success Whether every check of the last cycle passed.\n");
+        out.append("# TYPE mailtester_last_cycle_success gauge\n");
+        out.append("mailtester_last_cycle_success ").append(lastCycleSuccess.get()).append('\n');
+        out.append("# HELP mailtester_last_cycle_timestamp_seconds Start time of the last cycle.\n");
+        out.append("# TYPE mailtester_last_cycle_timestamp_seconds gauge\n");
+        out.append("mailtester_last_cycle_timestamp_seconds ").append(lastCycleEpochSeconds.get()).append('\n');
+        if (delivery != null) {
+            out.append("# HELP mailtester_delivery_probes_total Delivery probes by outcome; their latency is phase delivery.send_to_inbox.\n");
+            out.append("# TYPE mailtester_delivery_probes_total counter\n");
+            out.append("mailtester_delivery_probes_total{outcome=\"delivered\"} ").append(delivery.delivered.sum()).append('\n');
+            out.append("mailtester_delivery_probes_total{outcome=\"lost\"} ").append(delivery.lost.sum()).append('\n');
+            out.append("mailtester_delivery_probes_total{outcome=\"not_sent\"} ").append(delivery.notSent.sum()).append('\n');
+            out.append("# HELP mailtester_delivery_probes_in_flight Delivery probes sent that have not arrived yet.\n");
+            out.append("# TYPE mailtester_delivery_probes_in_flight gauge\n");
+            out.append("mailtester_delivery_probes_in_flight ").append(delivery.inFlight()).append('\n');
+        }
+
+        out.append("# HELP mailtester_phase_latency_seconds Latency of each connection phase since startup.\n");
+        out.append("# TYPE mailtester_phase_latency_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : LatencyReport.live().entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            for (int q = 0; q < QUANTILES.length; q++) {
+                out.append("mailtester_phase_latency_seconds{phase=\"").append(entry.getKey())
+                   .append("\",quantile=\"").append(QUANTILE_LABELS[q]).append("\"} ");
+                appendSeconds(out, histogram.percentileMicros(QUANTILES[q] * 100));
+            }
+            out.append("mailtester_phase_latency_seconds_sum{phase=\"").append(entry.getKey()).append("\"} ");
+            appendSeconds(out, histogram.sumMicros());
+            out.append("mailtester_phase_latency_seconds_count{phase=\"").append(entry.getKey()).append("\"} ")
+               .append(histogram.count()).append('\n');
+        }
+
+        // The exposition format is ASCII, so characters map one-to-one onto bytes.
+        int length = out.length();
+        if (body.length < length) {
+            body = new byte[Math.max(length, body.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) out.charAt(i);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body, 0, length);
+        }
+    }
+
+    /**
+     * Appends a microsecond value as seconds with microsecond precision, without going through double formatting.
+     */
+    private static void appendSeconds(StringBuilder out, long micros) {
+        out.append(micros / 1_000_000).append('.');
+        long fraction = micros % 1_000_000;
+        for (long digit = 100_000; digit > 0; digit /= 10) {
+            out.append((char) ('0' + fraction / digit % 10));
+        }
+        out.append('\n');
+    }
+}
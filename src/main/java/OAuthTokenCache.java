@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * An on-disk cache of OAuth tokens, keyed by client id, user and scope.
+ *
+ * A cached access token is used until it is close to expiry; it is then renewed with the refresh token.
+ * Only when there is no usable refresh token is the interactive flow (browser or device code) run.
+ * Concurrent callers for the same key share a single in-flight refresh.
+ */
+public class OAuthTokenCache {
+
+    /**
+     * Produces a token response interactively, e.g. through the browser or device code flow.
+     * Returns null if no token could be obtained.
+     */
+    public interface TokenSource {
+        JSONObject fetch() throws IOException, InterruptedException;
+    }
+
+    private static final ConcurrentHashMap<String, JSONObject> entries = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<JSONObject>> inFlight = new ConcurrentHashMap<>();
+    private static boolean loaded = false;
+    /** Cache key and token last reported as reused, so a daemon reusing it every cycle reports it once. */
+    private static final ConcurrentHashMap<String, String> announced = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a valid access token for the user, using the cache and refresh token where possible and
+     * falling back to the interactive source. The source may be null for unattended runs. If the token
+     * endpoint cannot be reached, a cached token that is due for renewal but not yet expired is used.
+     */
+    public static String getAccessToken(Properties props, String userEmail, TokenSource interactive) throws IOException, InterruptedException {
+        String key = cacheKey(props, userEmail);
+        loadCache(props);
+
+        JSONObject entry = entries.get(key);
+        if (entry != null && !expiresSoon(props, entry)) {
+            String token = entry.getString("access_token");
+            if (!token.equals(announced.put(key, token))) {
+                System.out.println("Using cached access token (valid for another " + secondsLeft(entry) + " s).");
+            }
+            return token;
+        }
+
+        if (entry != null && entry.has("refresh_token")) {
+            JSONObject cached = entry;
+            try {
+                entry = refreshShared(props, key, cached);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (secondsLeft(cached) <= 0) throw e;
+                System.err.println("Could not refresh the access token (" + e + "); using the cached one, valid for another "
+                        + secondsLeft(cached) + " s.");
+                return cached.getString("access_token");
+            }
+            if (entry != null) {
+                return entry.getString("access_token");
+            }
+        }
+
+        if (interactive == null) {
+            throw new IOException("No cached or refreshable token for " + userEmail + "; run the interactive flow first.");
+        }
+        long signInStart = System.nanoTime();
+        JSONObject response;
+        try {
+            response = interactive.fetch();
+        } finally {
+            LatencyReport.excludeFromStartup(System.nanoTime() - signInStart);
+        }
+        if (response == null) {
+            return null;
+        }
+        store(props, key, toEntry(response, null));
+        return response.getString("access_token");
+    }
+
+    /**
+     * Stores a token response obtained outside getAccessToken, e.g. by enrolling several users at once.
+     */
+    public static void put(Properties props, String userEmail, JSONObject response) {
+        loadCache(props);
+        store(props, cacheKey(props, userEmail), toEntry(response, null));
+    }
+
+    /**
+     * Refreshes the entry, letting concurrent callers for the same key wait on one token request.
+     */
+    private static JSONObject refreshShared(Properties props, String key, JSONObject stale) throws IOException {
+        CompletableFuture<JSONObject> mine = new CompletableFuture<>();
+        CompletableFuture<JSONObject> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                }
+                return null;
+            }
+        }
+
+        try {
+            // Another caller may have finished a refresh between our cache read and claiming the slot.
+            JSONObject current = entries.get(key);
+            if (current != null && current != stale && !expiresSoon(props, current)) {
+                mine.complete(current);
+                return current;
+            }
+            System.out.println("Refreshing access token...");
+            JSONObject refreshed = requestRefresh(props, stale.getString("refresh_token"));
+            JSONObject entry = refreshed == null ? null : toEntry(refreshed, stale.getString("refresh_token"));
+            if (entry != null) {
+                store(props, key, entry);
+                System.out.println("Access token refreshed.");
+            }
+            mine.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Redeems a refresh token at the token endpoint, retrying throttled (429) and failed (5xx) requests.
+     * Returns null if the refresh token was rejected.
+     */
+    private static JSONObject requestRefresh(Properties props, String refreshToken) throws IOException {
+        String tokenUrl = props.getProperty("mail.oauth.token.url");
+        int retries = Integer.parseInt(props.getProperty("mail.throttle.max.retries", "3").trim());
+        TokenClient.Reply reply = TokenClient.await(TokenClient.refresh(props, refreshToken));
+        for (int attempt = 0; reply.isTransient() && attempt < retries; attempt++) {
+            long wait = Math.max(1000L, TokenClient.throttledMillis(tokenUrl));
+            System.err.println("Token endpoint answered HTTP " + reply.status + "; retrying the refresh in " + wait + " ms.");
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry the token refresh");
+            }
+            reply = TokenClient.await(TokenClient.refresh(props, refreshToken));
+        }
+        if (reply.isSuccess()) {
+            return reply.body;
+        }
+        System.err.println("Refresh token was rejected; falling back to interactive sign-in.");
+        System.err.println("Error details: " + reply.describe());
+        return null;
+    }
+
+    /**
+     * Converts a token endpoint response into a cache entry with an absolute expiry time.
+     * Token endpoints may omit the refresh token on renewal, in which case the previous one is kept.
+     */
+    private static JSONObject toEntry(JSONObject response, String previousRefreshToken) {
+        JSONObject entry = new JSONObject();
+        entry.put("access_token", response.getString("access_token"));
+        entry.put("expires_at", System.currentTimeMillis() + response.optLong("expires_in", 3600) * 1000L);
+        String refreshToken = response.optString("refresh_token", previousRefreshToken);
+        if (refreshToken != null && !refreshToken.isEmpty()) {
+            entry.put("refresh_token", refreshToken);
+        }
+        return entry;
+    }
+
+    private static boolean expiresSoon(Properties props, JSONObject entry) {
+        long skewSeconds = Long.parseLong(props.getProperty("mail.oauth.refresh.skew.seconds", "300").trim());
+        return secondsLeft(entry) < skewSeconds;
+    }
+
+    private static long secondsLeft(JSONObject entry) {
+        return (entry.getLong("expires_at") - System.currentTimeMillis()) / 1000L;
+    }
+
+    private static String cacheKey(Properties props, String userEmail) {
+        return props.getProperty("mail.oauth.client.id") + "|" + userEmail + "|" + normalizedScope(props);
+    }
+
+    private static String normalizedScope(Properties props) {
+        return props.getProperty("mail.oauth.scope", "").replace('+', ' ').replaceAll("\\s+", " ").trim();
+    }
+
+    private static Path cacheFile(Properties props) {
+        String file = props.getProperty("mail.oauth.token.cache.file", "").trim();
+        return file.isEmpty() ? null : Paths.get(file);
+    }
+
+    private static synchronized void loadCache(Properties props) {
+        if (loaded) return;
+        loaded = true;
+        Path file = cacheFile(props);
+        if (file == null || !Files.exists(file)) return;
+        try {
+            JSONObject cache = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            for (String key : cache.keySet()) {
+                entries.put(key, cache.getJSONObject(key));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable token cache '" + file + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the entry and rewrites the cache file atomically, readable by the owner only where supported.
+     */
+    private static synchronized void store(Properties props, String key, JSONObject entry) {
+        entries.put(key, entry);
+        Path file = cacheFile(props);
+        if (file == null) return;
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Path tmp = Files.createTempFile(dir, ".token-cache", ".tmp");
+            try {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; rely on the directory's permissions.
+            }
+            Files.write(tmp, new JSONObject(entries).toString(2).getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write token cache '" + file + "': " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+import jakarta.mail.AuthenticationFailedException;
+
+/**
+ * The outcome of probing a single shared mailbox: one status per check, plus timing and the first failure.
+ */
+public class ProbeResult {
+
+    /** Index of each check in the per-check arrays. */
+    static final int SMTP = 0, IMAP = 1, SEND_AS = 2;
+
+    /**
+     * Status of an individual check. A check is skipped when an earlier one failed or it is not configured.
+     */
+    public enum Status { OK, FAILED, SKIPPED }
+
+    final String mailbox;
+    Status smtp = Status.SKIPPED;
+    Status imap = Status.SKIPPED;
+    Status sendAs = Status.SKIPPED;
+    int messageCount = -1;
+    String failure;
+    String errorClass;
+    int throttles;
+    long elapsedNanos;
+
+    /** Per check: how long it took, and the phases recorded while it ran (indexed like {@link ResultsLog#PHASES}). */
+    final long[] checkNanos = new long[3];
+    final long[][] phaseNanos = new long[3][ResultsLog.PHASES.length];
+
+    ProbeResult(String mailbox) {
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Starts timing a check. Phases recorded on this thread count towards it until {@link #endCheck}.
+     * When a check is retried, only its last attempt is kept.
+     */
+    long beginCheck(int check) {
+        Arrays.fill(phaseNanos[check], 0);
+        LatencyReport.capture(phaseNanos[check]);
+        return System.nanoTime();
+    }
+
+    void endCheck(int check, long start) {
+        checkNanos[check] = System.nanoTime() - start;
+        LatencyReport.capture(null);
+    }
+
+    /**
+     * Marks the first check that has not run yet as failed with the given exception.
+     */
+    void fail(Exception e) {
+        if (smtp == Status.SKIPPED) {
+            smtp = Status.FAILED;
+        } else if (imap == Status.SKIPPED) {
+            imap = Status.FAILED;
+        } else {
+            sendAs = Status.FAILED;
+        }
+        Throttle throttle = Throttle.of(e);
+        String kind = e instanceof AuthenticationFailedException ? "authentication failed"
+                : throttle != null ? "throttled (" + throttle.kind + ")" : e.getClass().getSimpleName();
+        failure = e.getMessage() == null ? kind : kind + ": " + e.getMessage().trim();
+        errorClass = throttle != null ? "throttled " + throttle.kind : e.getClass().getSimpleName();
+    }
+
+    public boolean isSuccess() {
+        return smtp != Status.FAILED && imap != Status.FAILED && sendAs != Status.FAILED;
+    }
+
+    /**
+     * Formats the result as a single line, suitable for streaming while other probes are still running.
+     */
+    public String toLine() {
+        StringBuilder line = new StringBuilder(128);
+        line.append(isSuccess() ? "OK    " : "FAIL  ").append(mailbox)
+            .append("  smtp=").append(smtp)
+            .append(" imap=").append(imap);
+        if (messageCount >= 0) {
+            line.append('(').append(messageCount).append(" msgs)");
+        }
+        line.append(" sendAs=").append(sendAs)
+            .append("  ").append(elapsedNanos / 1_000_000).append(" ms");
+        if (throttles > 0) {
+            line.append("  throttled ").append(throttles).append('x');
+        }
+        if (failure != null) {
+            line.append("  ").append(failure);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.net.SocketFactory;
+
+import jakarta.mail.Session;
+
+/**
+ * Socket factory installed as 'mail.smtp.socketFactory' / 'mail.imap.socketFactory' that times the
+ * TCP connect of every mail connection. For implicit TLS (IMAPS) with the {@link TlsSessionCache} the
+ * sockets created here layer TLS themselves once connected; otherwise Jakarta Mail layers it on top.
+ * Either way the connect is still measured on its own.
+ *
+ * Unless 'mail.connect.race.enable' is false, the sockets race all addresses of the host (see
+ * {@link RacingSocket}) using the DNS cache and address statistics in {@link EndpointCache}.
+ * 'mail.smtp.connect.addresses' / 'mail.imap.connect.addresses' replace DNS with a fixed address list.
+ */
+public class ProbeSocketFactory extends SocketFactory {
+
+    private static final ThreadLocal<long[]> lastConnectNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final String protocol;
+    private final boolean racing;
+    private final long raceDelayMillis;
+    private final long dnsTtlMillis;
+    private final InetAddress[] fixedAddresses;
+    private final TlsSessionCache tls;
+
+    public ProbeSocketFactory(String protocol, Properties props) {
+        this(protocol, props, null);
+    }
+
+    /**
+     * Creates a factory whose sockets layer implicit TLS from the given session cache once connected.
+     */
+    public ProbeSocketFactory(String protocol, Properties props, TlsSessionCache tls) {
+        this.protocol = protocol;
+        this.tls = tls;
+        this.racing = Boolean.parseBoolean(props.getProperty("mail.connect.race.enable", "true").trim());
+        this.raceDelayMillis = Long.parseLong(props.getProperty("mail.connect.race.delay.ms", "250").trim());
+        this.dnsTtlMillis = Long.parseLong(props.getProperty("mail.dns.cache.ttl.seconds", "60").trim()) * 1000L;
+        this.fixedAddresses = parseAddresses(props.getProperty("mail." + protocol + ".connect.addresses", ""));
+    }
+
+    /**
+     * Returns how long the most recent connect on this thread took, so callers can subtract it from
+     * coarser timings. Zero if no socket from this factory has connected on this thread since
+     * {@link #resetLastConnect()}.
+     */
+    static long lastConnectNanos() {
+        return lastConnectNanos.get()[0];
+    }
+
+    static void resetLastConnect() {
+        lastConnectNanos.get()[0] = 0;
+    }
+
+    /**
+     * Records a completed TCP connect for the protocol and remembers its duration for this thread.
+     */
+    static void recordConnect(String protocol, long elapsedNanos) {
+        lastConnectNanos.get()[0] = elapsedNanos;
+        LatencyReport.record(protocol + ".tcp_connect", elapsedNanos);
+    }
+
+    @Override
+    public Socket createSocket() {
+        Socket socket = createPlainSocket();
+        return tls == null ? socket : tls.wrap(protocol, socket);
+    }
+
+    private Socket createPlainSocket() {
+        if (racing) {
+            return new RacingSocket(protocol, raceDelayMillis, dnsTtlMillis, fixedAddresses);
+        }
+        return new Socket() {
+            @Override
+            public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                long start = System.nanoTime();
+                super.connect(endpoint, timeout);
+                recordConnect(protocol, System.nanoTime() - start);
+            }
+        };
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+
+    /**
+     * Resolves the host up front and records the lookup time as the protocol's DNS phase. With racing
+     * sockets the answer goes into the endpoint cache, so only lookups that miss it are recorded;
+     * otherwise the JVM caches the answer and the resolution Jakarta Mail does next is effectively free.
+     */
+    static void timeDnsLookup(Session session, String protocol, String host) {
+        Object factory = session.getProperties().get("mail." + protocol + ".socketFactory");
+        try {
+            if (factory instanceof ProbeSocketFactory && ((ProbeSocketFactory) factory).racing) {
+                ProbeSocketFactory probe = (ProbeSocketFactory) factory;
+                if (probe.fixedAddresses == null) {
+                    EndpointCache.resolve(protocol, host, probe.dnsTtlMillis);
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            InetAddress.getAllByName(host);
+            LatencyReport.record(protocol + ".dns", System.nanoTime() - start);
+        } catch (IOException e) {
+            // connect will fail and report the unknown host itself
+        }
+    }
+
+    private static InetAddress[] parseAddresses(String list) {
+        if (list.trim().isEmpty()) return null;
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String literal : list.split(",")) {
+            if (literal.trim().isEmpty()) continue;
+            try {
+                addresses.add(InetAddress.getByName(literal.trim()));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Not an IP address: '" + literal.trim() + "'", e);
+            }
+        }
+        return addresses.isEmpty() ? null : addresses.toArray(new InetAddress[0]);
+    }
+}
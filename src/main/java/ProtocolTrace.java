@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import jakarta.mail.Session;
+
+/**
+ * Keeps the SMTP and IMAP protocol exchange of every probe in a small per-thread ring buffer and writes
+ * it out only when the probe fails or is slow.
+ *
+ * With 'mail.trace.enable' set (and 'mail.debug' off), the mail session's debug output goes to a stream
+ * that copies each line into a buffer of 'mail.trace.buffer.kb' owned by the current thread, allocated
+ * once per thread: nothing is locked, formatted or written on the way. Only command and response lines are
+ * kept: message data after DATA or BDAT and IMAP literals are skipped and long lines are cut short, so a
+ * large message neither slows the probe down nor pushes its commands out of the buffer. A probe runs all
+ * its connections on one thread, so the buffer holds that probe's exchange. When {@link #end} sees a failure or a probe
+ * slower than 'mail.trace.slow.ms', the buffer is copied and handed to a background thread, which redacts
+ * XOAUTH2 tokens and writes it to a file in 'mail.trace.dir' (or to the console when that is blank).
+ */
+public class ProtocolTrace {
+
+    private static final Pattern XOAUTH2 = Pattern.compile("(?i)(XOAUTH2)\\s+[A-Za-z0-9+/=]{20,}");
+    private static final Pattern BEARER = Pattern.compile("(?i)(Bearer)\\s+[^\\s\\x01]+");
+    // A continuation line holding a bare SASL response: long, and nothing but base64.
+    private static final Pattern BASE64_LINE = Pattern.compile("(?:[A-Za-z0-9+/]{4}){10,}(?:[A-Za-z0-9+/]{2}==|[A-Za-z0-9+/]{3}=)?");
+    private static final int MAX_LINE = 200;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+
+    private static volatile boolean enabled;
+    private static volatile int capacity = 64 * 1024;
+    private static volatile long slowNanos;
+    private static volatile String directory = "";
+
+    private static final ThreadLocal<Ring> rings = ThreadLocal.withInitial(() -> new Ring(capacity));
+    private static final LongAdder dropped = new LongAdder();
+
+    // One writer thread; when it falls behind, further dumps are dropped rather than queued without bound.
+    private static final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(64), runnable -> {
+                Thread thread = new Thread(runnable, "trace-writer");
+                thread.setDaemon(true);
+                return thread;
+            }, (task, executor) -> dropped.increment());
+
+    /** The last bytes written on one thread, and where that thread is in skipping message data. */
+    private static final class Ring {
+        final byte[] data;
+        final int mask;
+        long written;
+        long skipBytes;
+        boolean inData;
+
+        Ring(int capacity) {
+            this.data = new byte[capacity];
+            this.mask = capacity - 1;
+        }
+
+        void put(int b) {
+            data[(int) (written++) & mask] = (byte) b;
+        }
+
+        void put(String s) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                put(c < 0x80 ? c : '?');
+            }
+        }
+
+        /**
+         * Adds one protocol line, unless it is message data: the payload after a 354 reply up to the
+         * closing ".", the octets announced by "BDAT n", or an IMAP literal announced by a trailing "{n}".
+         */
+        void line(String s) {
+            if (skipBytes > 0) {
+                skipBytes -= s.length() + 2;
+                return;
+            }
+            if (inData) {
+                if (!s.equals(".")) return;
+                inData = false;
+            }
+            int n = Math.min(s.length(), MAX_LINE);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                put(c < 0x80 ? c : '?');
+            }
+            if (s.length() > MAX_LINE) put(" [" + s.length() + " chars]");
+            put('\n');
+
+            long octets = announcedOctets(s);
+            if (octets > 0) {
+                skipBytes = octets;
+                put("[" + octets + " bytes of data not traced]\n");
+            } else if (s.startsWith("354")) {
+                inData = true;
+                put("[message data not traced]\n");
+            }
+        }
+
+        void reset() {
+            written = 0;
+            skipBytes = 0;
+            inData = false;
+        }
+
+        /** Copies the buffered bytes, oldest first, starting at a line boundary if older output was overwritten. */
+        byte[] snapshot() {
+            if (written <= data.length) return Arrays.copyOf(data, (int) written);
+            int start = (int) written & mask;
+            byte[] copy = new byte[data.length];
+            System.arraycopy(data, start, copy, 0, data.length - start);
+            System.arraycopy(data, 0, copy, data.length - start, start);
+            int firstLine = 0;
+            while (firstLine < copy.length && copy[firstLine++] != '\n') {
+                // Skip the partly overwritten line.
+            }
+            return Arrays.copyOfRange(copy, firstLine, copy.length);
+        }
+    }
+
+    /** The size of the data a "BDAT n" command or an IMAP literal "{n}" says follows the line, or 0. */
+    private static long announcedOctets(String s) {
+        int start;
+        int end;
+        if (s.startsWith("BDAT ")) {
+            start = 5;
+            end = start;
+            while (end < s.length() && Character.isDigit(s.charAt(end))) end++;
+        } else if (s.endsWith("}")) {
+            end = s.length() - 1;
+            start = s.lastIndexOf('{', end) + 1;
+            if (start == 0) return 0;
+            // A non-synchronizing literal is written {n+}.
+            if (end > start && s.charAt(end - 1) == '+') end--;
+        } else {
+            return 0;
+        }
+        if (end == start || end - start > 18) return 0;
+        for (int i = start; i < end; i++) {
+            if (!Character.isDigit(s.charAt(i))) return 0;
+        }
+        return Long.parseLong(s.substring(start, end));
+    }
+
+    /** The session's debug output: every line lands in the current thread's ring. */
+    private static final PrintStream STREAM = new PrintStream(OutputStream.nullOutputStream()) {
+        @Override
+        public void write(int b) {
+            rings.get().put(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            Ring ring = rings.get();
+            for (int i = offset; i < offset + length; i++) {
+                ring.put(buffer[i]);
+            }
+        }
+
+        @Override
+        public void print(String s) {
+            rings.get().put(String.valueOf(s));
+        }
+
+        @Override
+        public void print(Object o) {
+            print(String.valueOf(o));
+        }
+
+        @Override
+        public void println() {
+            rings.get().put('\n');
+        }
+
+        @Override
+        public void println(String s) {
+            rings.get().line(String.valueOf(s));
+        }
+
+        @Override
+        public void println(Object o) {
+            println(String.valueOf(o));
+        }
+
+        @Override
+        public void flush() {
+            // Nothing is written until a dump.
+        }
+    };
+
+    /**
+     * Routes the session's debug output into the ring buffers, if 'mail.trace.enable' is set and 'mail.debug'
+     * (which prints everything to the console) is not.
+     */
+    static void install(Session session, Properties props) {
+        if (Boolean.parseBoolean(props.getProperty("mail.debug", "false").trim())
+                || !Boolean.parseBoolean(props.getProperty("mail.trace.enable", "false").trim())) {
+            return;
+        }
+        int bytes = Math.max(4, Integer.parseInt(props.getProperty("mail.trace.buffer.kb", "64").trim())) * 1024;
+        capacity = Integer.highestOneBit(bytes - 1) << 1;
+        slowNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(props.getProperty("mail.trace.slow.ms", "5000").trim()));
+        directory = props.getProperty("mail.trace.dir", "").trim();
+        session.setDebugOut(STREAM);
+        session.setDebug(true);
+        enabled = true;
+    }
+
+    /**
+     * Whether protocol traces are being kept, in which case message data is not worth tracing.
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a line of our own to this thread's trace, e.g. to say that some of the exchange was not traced.
+     */
+    static void note(String line) {
+        if (enabled) rings.get().line(line);
+    }
+
+    /**
+     * Starts the trace of a probe on this thread, discarding what earlier work on the thread left behind.
+     */
+    static void begin() {
+        if (!enabled) return;
+        Ring ring = rings.get();
+        if (ring.data.length != capacity) {
+            rings.set(new Ring(capacity));
+        } else {
+            ring.reset();
+        }
+    }
+
+    /**
+     * Ends the trace of a probe on this thread. A failed or slow probe's trace is written out in the background.
+     */
+    static void end(String label, boolean failed, long elapsedNanos) {
+        if (!enabled || (!failed && elapsedNanos <= slowNanos)) return;
+        Ring ring = rings.get();
+        boolean truncated = ring.written > ring.data.length;
+        byte[] trace = ring.snapshot();
+        String reason = failed ? "failed" : String.format("slow (%.0f ms)", elapsedNanos / 1e6);
+        Instant at = Instant.now();
+        writer.execute(() -> write(label, reason, at, trace, truncated));
+    }
+
+    /**
+     * Waits for the traces still queued to be written. Called once a run is complete.
+     */
+    static void close() {
+        if (!enabled) return;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.sum() > 0) {
+            System.err.println(dropped.sum() + " protocol trace(s) were dropped because the writer could not keep up.");
+        }
+    }
+
+    private static void write(String label, String reason, Instant at, byte[] trace, boolean truncated) {
+        StringBuilder text = new StringBuilder(trace.length + 256);
+        text.append("# Protocol trace of ").append(label).append(", ").append(reason).append(", ").append(at).append('\n');
+        if (truncated) {
+            text.append("# Older output was overwritten; raise mail.trace.buffer.kb to keep more.\n");
+        }
+        for (String line : new String(trace, StandardCharsets.ISO_8859_1).split("\r?\n")) {
+            text.append(redact(line)).append('\n');
+        }
+
+        if (directory.isEmpty()) {
+            System.err.print(text);
+            return;
+        }
+        Path file = Paths.get(directory, "trace-" + FILE_TIME.format(at) + "-" + label.replaceAll("[^A-Za-z0-9@._-]", "_") + ".log");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(file, text.toString().getBytes(StandardCharsets.ISO_8859_1));
+            System.err.println("Protocol trace of " + label + " (" + reason + ") written to " + file);
+        } catch (IOException e) {
+            System.err.println("Could not write the protocol trace of " + label + " to " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces XOAUTH2 initial responses, bearer tokens and bare base64 SASL responses in a trace line.
+     */
+    static String redact(String line) {
+        if (BASE64_LINE.matcher(line.trim()).matches()) return "<redacted>";
+        String redacted = XOAUTH2.matcher(line).replaceAll("$1 <redacted>");
+        return BEARER.matcher(redacted).replaceAll("$1 <redacted>");
+    }
+}
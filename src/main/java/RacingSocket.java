@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A socket whose connect races every address of the host, happy-eyeballs style (RFC 8305).
+ *
+ * Addresses are tried in the order {@link EndpointCache#rank} gives; each further attempt starts after
+ * the race delay, or at once when the previous attempt fails. All attempts are non-blocking connects on
+ * one selector, so a race needs no extra threads. The first connection to complete wins, the others are
+ * closed and remembered as slow or failed. Every other call is delegated to the winning connection.
+ */
+class RacingSocket extends Socket {
+
+    private final String protocol;
+    private final long raceDelayNanos;
+    private final long dnsTtlMillis;
+    private final InetAddress[] fixedAddresses;
+
+    private Socket delegate;
+    private SocketAddress bindpoint;
+    private int soTimeout;
+    private boolean closed;
+
+    RacingSocket(String protocol, long raceDelayMillis, long dnsTtlMillis, InetAddress[] fixedAddresses) {
+        this.protocol = protocol;
+        this.raceDelayNanos = TimeUnit.MILLISECONDS.toNanos(raceDelayMillis);
+        this.dnsTtlMillis = dnsTtlMillis;
+        this.fixedAddresses = fixedAddresses;
+    }
+
+    private static final class Attempt {
+        final InetAddress address;
+        final SocketChannel channel;
+        final long start;
+
+        Attempt(InetAddress address, SocketChannel channel, long start) {
+            this.address = address;
+            this.channel = channel;
+            this.start = start;
+        }
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint) throws IOException {
+        connect(endpoint, 0);
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        if (closed) throw new SocketException("Socket is closed");
+        if (delegate != null) throw new SocketException("Already connected");
+        InetSocketAddress target = (InetSocketAddress) endpoint;
+        InetAddress[] addresses = fixedAddresses != null
+                ? fixedAddresses
+                : EndpointCache.resolve(protocol, target.getHostString(), dnsTtlMillis);
+
+        long start = System.nanoTime();
+        SocketChannel winner = race(EndpointCache.rank(addresses, raceDelayNanos), target.getPort(), timeout);
+        long elapsed = System.nanoTime() - start;
+        ProbeSocketFactory.recordConnect(protocol, elapsed);
+
+        winner.configureBlocking(true);
+        delegate = winner.socket();
+        delegate.setSoTimeout(soTimeout);
+    }
+
+    private SocketChannel race(InetAddress[] ranked, int port, int timeoutMillis) throws IOException {
+        long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+        List<Attempt> pending = new ArrayList<>();
+        IOException lastFailure = null;
+        SocketChannel winner = null;
+        int next = 0;
+        long nextStart = System.nanoTime();
+
+        Selector selector = Selector.open();
+        try {
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (next < ranked.length && (now >= nextStart || pending.isEmpty())) {
+                    InetAddress address = ranked[next++];
+                    nextStart = now + raceDelayNanos;
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        if (bindpoint != null) channel.bind(bindpoint);
+                        if (channel.connect(new InetSocketAddress(address, port))) {
+                            EndpointCache.recordConnect(address, System.nanoTime() - now);
+                            winner = channel;
+                        } else {
+                            Attempt attempt = new Attempt(address, channel, now);
+                            channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+                            pending.add(attempt);
+                        }
+                    } catch (IOException e) {
+                        channel.close();
+                        EndpointCache.recordFailure(address);
+                        lastFailure = e;
+                        nextStart = now;
+                    }
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    throw lastFailure != null ? lastFailure : new ConnectException("No addresses to connect to");
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect timed out after " + timeoutMillis + " ms (" + ranked.length + " addresses)");
+                }
+
+                long wakeUp = next < ranked.length ? Math.min(nextStart, deadline) : deadline;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeUp - now)));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Attempt attempt = (Attempt) key.attachment();
+                    try {
+                        if (attempt.channel.finishConnect()) {
+                            key.cancel();
+                            pending.remove(attempt);
+                            EndpointCache.recordConnect(attempt.address, System.nanoTime() - attempt.start);
+                            winner = attempt.channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        attempt.channel.close();
+                        pending.remove(attempt);
+                        EndpointCache.recordFailure(attempt.address);
+                        lastFailure = e;
+                        nextStart = System.nanoTime();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            return winner;
+        } finally {
+            long now = System.nanoTime();
+            for (Attempt attempt : pending) {
+                if (winner != null) {
+                    EndpointCache.recordSlow(attempt.address, now - attempt.start);
+                } else {
+                    EndpointCache.recordFailure(attempt.address);
+                }
+                attempt.channel.close();
+            }
+            // Closing the selector deregisters the winner, which must happen before it is made blocking.
+            selector.close();
+        }
+    }
+
+    private Socket connected() throws SocketException {
+        if (delegate == null) throw new SocketException("Socket is not connected");
+        return delegate;
+    }
+
+    @Override
+    public void bind(SocketAddress bindpoint) throws IOException {
+        this.bindpoint = bindpoint;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return connected().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return connected().getOutputStream();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return delegate == null ? null : delegate.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return delegate == null ? super.getLocalAddress() : delegate.getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return delegate == null ? 0 : delegate.getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return delegate == null ? -1 : delegate.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return delegate == null ? null : delegate.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return delegate == null ? null : delegate.getLocalSocketAddress();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        soTimeout = timeout;
+        if (delegate != null) delegate.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return delegate == null ? soTimeout : delegate.getSoTimeout();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        connected().setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return connected().getTcpNoDelay();
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException {
+        connected().setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return connected().getKeepAlive();
+    }
+
+    @Override
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        connected().setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger() throws SocketException {
+        return connected().getSoLinger();
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        connected().setSendBufferSize(size);
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return connected().getSendBufferSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) throws SocketException {
+        connected().setReceiveBufferSize(size);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws SocketException {
+        return connected().getReceiveBufferSize();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        connected().shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        connected().shutdownOutput();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate != null && delegate.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return delegate != null ? delegate.isBound() : bindpoint != null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return delegate != null && delegate.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return delegate != null && delegate.isOutputShutdown();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (delegate != null) delegate.close();
+        super.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate == null ? "RacingSocket[unconnected]" : "RacingSocket[" + delegate + "]";
+    }
+}
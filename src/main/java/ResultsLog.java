@@ -0,0 +1,430 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only binary log of every check the test, fleet and daemon modes run, kept in 'mail.results.dir'
+ * and read back by {@link ResultsQuery}.
+ *
+ * The log is a series of segment files named after the time they were started. A segment begins with a
+ * 13 byte header (magic, version, start time in epoch milliseconds) followed by length-prefixed entries of
+ * two kinds: string definitions, which give a mailbox, host or error class a small id the first time the
+ * segment uses it, and results, which hold the check, status, those ids, the check time and every phase
+ * recorded while it ran. Numbers are unsigned LEB128 varints and times are offsets from the segment start,
+ * so a typical result takes 20 to 40 bytes. A segment is self-contained and is rolled once it reaches
+ * 'mail.results.segment.mb' or 'mail.results.segment.hours'; a torn entry at the end of a segment (from a
+ * killed process) is ignored by readers and cut off before the segment is appended to again.
+ */
+public class ResultsLog {
+
+    /** Check names, indexed like {@link ProbeResult#SMTP}, {@link ProbeResult#IMAP} and {@link ProbeResult#SEND_AS}. */
+    static final String[] CHECKS = {"smtp", "imap", "send_as"};
+
+    /** Phases kept per check. The position is the phase's bit in a result, so only ever add to the end. */
+    static final String[] PHASES = {
+            "smtp.dns", "smtp.tcp_connect", "smtp.greeting", "smtp.ehlo", "smtp.starttls", "smtp.ehlo_after_starttls",
+            "smtp.auth", "smtp.connect_total", "smtp.send",
+            "imap.dns", "imap.tcp_connect", "imap.tls_and_greeting", "imap.auth", "imap.connect_total",
+            "imap.select", "imap.message_count"
+    };
+
+    static final String SEGMENT_PREFIX = "results-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x4D545253; // "MTRS"
+    private static final byte VERSION = 1;
+    static final int HEADER_BYTES = 13;
+
+    private static final ProbeResult.Status[] STATUSES = ProbeResult.Status.values();
+
+    private static final byte DEFINE = 0;
+    private static final byte RESULT = 1;
+
+    private static final Map<String, Integer> phaseIndex = new HashMap<>();
+    static {
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseIndex.put(PHASES[i], i);
+        }
+    }
+
+    // Writer state, guarded by the class lock.
+    private static boolean configured;
+    private static Path dir;
+    private static long maxBytes;
+    private static long maxAgeMillis;
+    private static FileChannel channel;
+    private static FileLock lock;
+    private static long base;
+    private static long size;
+    private static final Map<String, Integer> ids = new HashMap<>();
+    private static final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+    private static ByteBuffer entry = ByteBuffer.allocate(1024);
+
+    /**
+     * Adds a phase time to the per-phase array of a check, if the phase is one the log keeps.
+     */
+    static void addPhase(long[] phaseNanos, String phase, long nanos) {
+        Integer index = phaseIndex.get(phase);
+        if (index != null) {
+            phaseNanos[index] += nanos;
+        }
+    }
+
+    /**
+     * Appends one result per check that ran. Does nothing when 'mail.results.dir' is blank; if the log
+     * cannot be written, the error is printed once and the run carries on without it.
+     */
+    static synchronized void append(Properties props, ProbeResult result) {
+        if (!configured) configure(props);
+        if (dir == null) return;
+        String[] hosts = {props.getProperty("mail.smtp.host", ""), props.getProperty("mail.imap.host", ""), props.getProperty("mail.smtp.host", "")};
+        ProbeResult.Status[] statuses = {result.smtp, result.imap, result.sendAs};
+        long now = System.currentTimeMillis();
+        try {
+            for (int check = 0; check < CHECKS.length; check++) {
+                if (statuses[check] == ProbeResult.Status.SKIPPED) continue;
+                String errorClass = statuses[check] == ProbeResult.Status.FAILED ? result.errorClass : null;
+                writeResult(now, check, statuses[check], result.mailbox, hosts[check].trim(), errorClass,
+                        result.checkNanos[check], result.phaseNanos[check]);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write to the results log in '" + dir + "', no further results are logged: " + e.getMessage());
+            closeQuietly();
+            dir = null;
+        }
+    }
+
+    /**
+     * Writes buffered results to the current segment.
+     */
+    static synchronized void flush() {
+        if (channel == null) return;
+        try {
+            drain();
+        } catch (IOException e) {
+            System.err.println("Could not write to the results log in '" + dir + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes buffered results and closes the current segment. A later append opens it again.
+     */
+    static synchronized void close() {
+        flush();
+        closeQuietly();
+    }
+
+    private static void configure(Properties props) {
+        configured = true;
+        String directory = props.getProperty("mail.results.dir", "").trim();
+        if (directory.isEmpty()) return;
+        dir = Paths.get(directory);
+        maxBytes = Long.parseLong(props.getProperty("mail.results.segment.mb", "64").trim()) * 1024 * 1024;
+        maxAgeMillis = Long.parseLong(props.getProperty("mail.results.segment.hours", "24").trim()) * 60 * 60 * 1000L;
+    }
+
+    private static void writeResult(long now, int check, ProbeResult.Status status, String mailbox, String host, String errorClass,
+                                    long checkNanos, long[] phaseNanos) throws IOException {
+        if (channel == null) {
+            openLatest(now);
+        } else if (size >= maxBytes || now - base >= maxAgeMillis) {
+            roll(now);
+        }
+        int mailboxId = define(mailbox);
+        int hostId = define(host);
+        int errorId = errorClass == null ? 0 : define(errorClass);
+
+        int mask = 0;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            if (phaseNanos[i] != 0) mask |= 1 << i;
+        }
+        entry.clear();
+        entry.put(RESULT);
+        putVarLong(entry, Math.max(0, now - base));
+        entry.put((byte) (check << 2 | status.ordinal()));
+        putVarLong(entry, mailboxId);
+        putVarLong(entry, hostId);
+        putVarLong(entry, errorId);
+        putVarLong(entry, checkNanos / 1000);
+        putVarLong(entry, mask);
+        for (int i = 0; i < phaseNanos.length; i++) {
+            if (phaseNanos[i] != 0) putVarLong(entry, phaseNanos[i] / 1000);
+        }
+        writeEntry();
+    }
+
+    private static int define(String value) throws IOException {
+        Integer id = ids.get(value);
+        if (id != null) return id;
+        id = ids.size() + 1;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (entry.capacity() < bytes.length + 16) {
+            entry = ByteBuffer.allocate(bytes.length + 16);
+        }
+        entry.clear();
+        entry.put(DEFINE);
+        putVarLong(entry, id);
+        entry.put(bytes);
+        writeEntry();
+        ids.put(value, id);
+        return id;
+    }
+
+    private static void writeEntry() throws IOException {
+        entry.flip();
+        if (out.remaining() < entry.remaining() + 5) {
+            drain();
+        }
+        if (out.remaining() < entry.remaining() + 5) {
+            // Larger than the buffer: write it straight through.
+            ByteBuffer large = ByteBuffer.allocate(entry.remaining() + 5);
+            putVarLong(large, entry.remaining());
+            large.put(entry).flip();
+            size += large.remaining();
+            while (large.hasRemaining()) channel.write(large);
+            return;
+        }
+        int start = out.position();
+        putVarLong(out, entry.remaining());
+        out.put(entry);
+        size += out.position() - start;
+    }
+
+    private static void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Continues the newest segment if it is still within the size and age limits and no other process is
+     * writing it; otherwise starts a new one.
+     */
+    private static void openLatest(long now) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = segments(dir);
+        if (!segments.isEmpty()) {
+            Path latest = segments.get(segments.size() - 1);
+            FileChannel existing = FileChannel.open(latest, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean continued = false;
+            try {
+                FileLock existingLock = existing.tryLock();
+                // Read into the heap rather than mapped: a file cannot be truncated on every platform while
+                // a mapping of it is alive, and a mapping is only released when it is garbage collected.
+                Reader reader = existingLock == null || existing.size() >= maxBytes ? null : Reader.read(existing);
+                if (reader != null && now - reader.base < maxAgeMillis) {
+                    while (reader.next()) {
+                        // only the definitions and the end of the last complete entry are needed
+                    }
+                    for (int id = 1; id < reader.strings.size(); id++) {
+                        ids.put(reader.strings.get(id), id);
+                    }
+                    existing.truncate(reader.end());
+                    existing.position(reader.end());
+                    channel = existing;
+                    lock = existingLock;
+                    base = reader.base;
+                    size = reader.end();
+                    continued = true;
+                    return;
+                }
+            } finally {
+                if (!continued) existing.close();
+            }
+        }
+        roll(now);
+    }
+
+    private static void roll(long now) throws IOException {
+        if (channel != null) {
+            drain();
+            closeQuietly();
+        }
+        Path file;
+        long start = now;
+        do {
+            file = dir.resolve(String.format("%s%013d%s", SEGMENT_PREFIX, start++, SEGMENT_SUFFIX));
+        } while (Files.exists(file));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        lock = channel.tryLock();
+        base = now;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).put(VERSION).putLong(base).flip();
+        while (header.hasRemaining()) channel.write(header);
+        size = HEADER_BYTES;
+        ids.clear();
+    }
+
+    private static void closeQuietly() {
+        try {
+            if (lock != null) lock.release();
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // nothing left to save
+        }
+        lock = null;
+        channel = null;
+        out.clear();
+        ids.clear();
+    }
+
+    /**
+     * Returns the segment files in the directory, oldest first.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+            if (shift > 56) throw new BufferUnderflowException();
+        }
+    }
+
+    /**
+     * Reads the results of one memory-mapped segment in order. The fields describe the result
+     * {@link #next()} stopped at; mailbox, host and error are ids for {@link #string(int)}, and
+     * phaseMicros only holds the phases whose bit is set in phaseMask.
+     */
+    static final class Reader {
+        final long base;
+        final List<String> strings = new ArrayList<>();
+        private final ByteBuffer buffer;
+
+        long timestamp;
+        int check;
+        ProbeResult.Status status;
+        int mailbox;
+        int host;
+        int error;
+        long elapsedMicros;
+        int phaseMask;
+        final long[] phaseMicros = new long[PHASES.length];
+
+        private Reader(ByteBuffer buffer, long base) {
+            this.buffer = buffer;
+            this.base = base;
+            strings.add(null);
+        }
+
+        /**
+         * Maps the segment read-only, or returns null if it does not start with a valid header.
+         */
+        static Reader open(FileChannel channel) throws IOException {
+            long length = channel.size();
+            if (length < HEADER_BYTES) return null;
+            return of(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        }
+
+        /**
+         * Like {@link #open}, but copies the segment into the heap, so no mapping outlives the reader.
+         */
+        static Reader read(FileChannel channel) throws IOException {
+            long length = channel.size();
+            if (length < HEADER_BYTES) return null;
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) break;
+            }
+            buffer.flip();
+            return of(buffer);
+        }
+
+        private static Reader of(ByteBuffer buffer) {
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.get() != VERSION) return null;
+            return new Reader(buffer, buffer.getLong());
+        }
+
+        /**
+         * Advances to the next result, taking in string definitions on the way. Returns false at the end of
+         * the segment or at a torn or damaged entry.
+         */
+        boolean next() {
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                try {
+                    long length = getVarLong(buffer);
+                    if (length <= 0 || length > buffer.remaining()) {
+                        buffer.position(start);
+                        return false;
+                    }
+                    int end = buffer.position() + (int) length;
+                    byte kind = buffer.get();
+                    if (kind == DEFINE) {
+                        int id = (int) getVarLong(buffer);
+                        byte[] bytes = new byte[end - buffer.position()];
+                        buffer.get(bytes);
+                        while (strings.size() <= id) strings.add(null);
+                        strings.set(id, new String(bytes, StandardCharsets.UTF_8));
+                    } else if (kind == RESULT) {
+                        timestamp = base + getVarLong(buffer);
+                        int checkAndStatus = buffer.get();
+                        check = checkAndStatus >> 2;
+                        status = STATUSES[checkAndStatus & 3];
+                        mailbox = (int) getVarLong(buffer);
+                        host = (int) getVarLong(buffer);
+                        error = (int) getVarLong(buffer);
+                        elapsedMicros = getVarLong(buffer);
+                        phaseMask = (int) getVarLong(buffer) & (1 << PHASES.length) - 1;
+                        for (int mask = phaseMask; mask != 0; mask &= mask - 1) {
+                            phaseMicros[Integer.numberOfTrailingZeros(mask)] = getVarLong(buffer);
+                        }
+                    }
+                    buffer.position(end);
+                    if (kind == RESULT) return true;
+                } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                    buffer.position(start);
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        String string(int id) {
+            return id > 0 && id < strings.size() ? strings.get(id) : null;
+        }
+
+        /** Offset just past the last complete entry read so far. */
+        long end() {
+            return buffer.position();
+        }
+
+        long size() {
+            return buffer.limit();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Query mode: latency percentiles and failure rates per mailbox or host from the {@link ResultsLog}.
+ *
+ * Segments outside the time window are skipped by their start time and last modification; the others are
+ * memory-mapped and scanned in parallel, one segment per task. All tasks add to one set of fixed-size,
+ * thread-safe histograms per mailbox or host, so memory grows with the number of mailboxes and hosts,
+ * not with the number of results or segments.
+ */
+public class ResultsQuery {
+
+    private final long since;
+    private final long until;
+    private final boolean byHost;
+    private final int check;
+    private final int phase;
+    private final String mailbox;
+
+    private static final String USAGE = "Usage: query [--since 24h] [--until <time>] [--by mailbox|host] [--check smtp|imap|send_as] [--phase <phase>] [--mailbox <address>]";
+
+    /** Counts and check (or phase) latencies of one mailbox or host, per check. Updated by all scan tasks. */
+    private static final class Row {
+        final AtomicLongArray count = new AtomicLongArray(ResultsLog.CHECKS.length);
+        final AtomicLongArray failed = new AtomicLongArray(ResultsLog.CHECKS.length);
+        final LatencyHistogram[] latency = new LatencyHistogram[ResultsLog.CHECKS.length];
+
+        Row() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Row> rows = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder results = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    private ResultsQuery(long since, long until, boolean byHost, int check, int phase, String mailbox) {
+        this.since = since;
+        this.until = until;
+        this.byHost = byHost;
+        this.check = check;
+        this.phase = phase;
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Runs 'query [--since 24h|7d|2024-05-01|instant] [--until ...] [--by mailbox|host]
+     * [--check smtp|imap|send_as] [--phase smtp.auth] [--mailbox address]'. No sign-in is needed.
+     */
+    public static void run(Properties props, String[] args) throws IOException {
+        String directory = props.getProperty("mail.results.dir", "").trim();
+        if (directory.isEmpty()) {
+            System.err.println("Query mode needs 'mail.results.dir' to point at the results log.");
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.err.println("Unexpected argument '" + args[i] + "'. " + USAGE);
+                return;
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        long now = System.currentTimeMillis();
+        String by = options.getOrDefault("by", "mailbox");
+        int check = options.containsKey("check") ? Arrays.asList(ResultsLog.CHECKS).indexOf(options.get("check")) : -1;
+        int phase = options.containsKey("phase") ? Arrays.asList(ResultsLog.PHASES).indexOf(options.get("phase")) : -1;
+        if (!by.equals("mailbox") && !by.equals("host")) {
+            System.err.println("--by must be 'mailbox' or 'host'.");
+            return;
+        }
+        if (options.containsKey("check") && check < 0) {
+            System.err.println("Unknown check '" + options.get("check") + "'. Checks: " + String.join(", ", ResultsLog.CHECKS));
+            return;
+        }
+        if (options.containsKey("phase") && phase < 0) {
+            System.err.println("Unknown phase '" + options.get("phase") + "'. Phases: " + String.join(", ", ResultsLog.PHASES));
+            return;
+        }
+        long since;
+        long until;
+        try {
+            since = parseTime(options.getOrDefault("since", "24h"), now);
+            until = options.containsKey("until") ? parseTime(options.get("until"), now) : now;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return;
+        }
+        ResultsQuery query = new ResultsQuery(since, until, by.equals("host"), check, phase, options.get("mailbox"));
+        query.print(Paths.get(directory), by, options.get("phase"));
+    }
+
+    /**
+     * Parses an age such as 90m, 12h or 7d (counted back from now), a date (midnight local time) or an ISO instant.
+     */
+    static long parseTime(String value, long now) {
+        String v = value.trim();
+        try {
+            if (v.matches("\\d+[smhd]")) {
+                long amount = Long.parseLong(v.substring(0, v.length() - 1));
+                switch (v.charAt(v.length() - 1)) {
+                    case 's': return now - Duration.ofSeconds(amount).toMillis();
+                    case 'm': return now - Duration.ofMinutes(amount).toMillis();
+                    case 'h': return now - Duration.ofHours(amount).toMillis();
+                    default:  return now - Duration.ofDays(amount).toMillis();
+                }
+            }
+            if (v.length() == 10) {
+                return LocalDate.parse(v).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+            return Instant.parse(v).toEpochMilli();
+        } catch (DateTimeParseException | ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("Not a time: '" + value + "'. Use an age like 90m, 12h or 7d, a date or an ISO instant.", e);
+        }
+    }
+
+    private void print(Path directory, String by, String phaseName) throws IOException {
+        long start = System.nanoTime();
+        List<Path> segments = new ArrayList<>();
+        List<Path> all = ResultsLog.segments(directory);
+        for (Path segment : all) {
+            if (segmentStart(segment) <= until && Files.getLastModifiedTime(segment).toMillis() >= since) {
+                segments.add(segment);
+            }
+        }
+        segments.parallelStream().forEach(this::scanQuietly);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("\n--- Results " + Instant.ofEpochMilli(since) + " .. " + Instant.ofEpochMilli(until)
+                + ", by " + by + ", " + (phaseName != null ? phaseName + " time" : "check time") + " ---");
+        if (results.sum() == 0) {
+            System.out.println("No results in this window.");
+        } else {
+            int width = Math.max(by.length(), rows.keySet().stream().mapToInt(String::length).max().orElse(0));
+            String header = "%-" + width + "s  %-7s %9s %8s %9s %9s %9s %9s%n";
+            String line = "%-" + width + "s  %-7s %9d %7.2f%% %9s %9s %9s %9s%n";
+            System.out.printf(header, by, "check", "count", "failed", "p50 ms", "p90 ms", "p99 ms", "max ms");
+            for (Map.Entry<String, Row> entry : new TreeMap<>(rows).entrySet()) {
+                Row row = entry.getValue();
+                for (int c = 0; c < ResultsLog.CHECKS.length; c++) {
+                    long count = row.count.get(c);
+                    if (count == 0) continue;
+                    LatencyHistogram latency = row.latency[c];
+                    System.out.printf(line, entry.getKey(), ResultsLog.CHECKS[c], count, 100.0 * row.failed.get(c) / count,
+                            millis(latency, 50), millis(latency, 90), millis(latency, 99), millis(latency, 100));
+                }
+            }
+            if (!errors.isEmpty()) {
+                System.out.println("\nFailures by error class:");
+                errors.entrySet().stream()
+                        .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                        .forEach(e -> System.out.printf("  %-40s %d%n", e.getKey(), e.getValue().sum()));
+            }
+        }
+        System.out.printf("%nScanned %d of %d segments (%.1f MB, %d results) in %.2f s%n",
+                segments.size(), all.size(), bytes.sum() / 1e6, results.sum(), seconds);
+    }
+
+    private static String millis(LatencyHistogram histogram, double percentile) {
+        if (histogram.count() == 0) return "-";
+        long micros = percentile >= 100 ? histogram.maxMicros() : histogram.percentileMicros(percentile);
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(ResultsLog.SEGMENT_PREFIX.length(), name.length() - ResultsLog.SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void scanQuietly(Path segment) {
+        try {
+            scan(segment);
+        } catch (IOException e) {
+            System.err.println("Skipping unreadable segment " + segment + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the results of one segment that fall in the window to the rows. Rows are looked up once per
+     * string id of the segment, so the scan itself does no hashing or string decoding.
+     */
+    private void scan(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ResultsLog.Reader reader = ResultsLog.Reader.open(channel);
+            if (reader == null) return;
+            bytes.add(reader.size());
+
+            // Indexed by string id of this segment: 0 not looked up yet, 1 included, 2 filtered out.
+            byte[] keyState = new byte[64];
+            byte[] mailboxState = new byte[64];
+            Row[] rowsById = new Row[64];
+            long[] errorsById = new long[8];
+            long count = 0;
+            while (reader.next()) {
+                if (reader.timestamp < since || reader.timestamp > until) continue;
+                if (reader.check < 0 || reader.check >= ResultsLog.CHECKS.length || (check >= 0 && reader.check != check)) continue;
+                if (mailbox != null) {
+                    if (reader.mailbox >= mailboxState.length) mailboxState = Arrays.copyOf(mailboxState, grow(mailboxState.length, reader.mailbox));
+                    if (mailboxState[reader.mailbox] == 0) {
+                        mailboxState[reader.mailbox] = (byte) (mailbox.equalsIgnoreCase(reader.string(reader.mailbox)) ? 1 : 2);
+                    }
+                    if (mailboxState[reader.mailbox] == 2) continue;
+                }
+                int key = byHost ? reader.host : reader.mailbox;
+                if (key >= keyState.length) {
+                    keyState = Arrays.copyOf(keyState, grow(keyState.length, key));
+                    rowsById = Arrays.copyOf(rowsById, keyState.length);
+                }
+                if (keyState[key] == 0) {
+                    String name = reader.string(key);
+                    keyState[key] = (byte) (name != null ? 1 : 2);
+                    if (name != null) rowsById[key] = rows.computeIfAbsent(name, k -> new Row());
+                }
+                Row row = rowsById[key];
+                if (row == null) continue;
+
+                count++;
+                row.count.incrementAndGet(reader.check);
+                if (reader.status == ProbeResult.Status.FAILED) {
+                    row.failed.incrementAndGet(reader.check);
+                    if (reader.error >= errorsById.length) errorsById = Arrays.copyOf(errorsById, grow(errorsById.length, reader.error));
+                    errorsById[reader.error]++;
+                } else if (phase < 0) {
+                    row.latency[reader.check].recordMicros(reader.elapsedMicros);
+                } else if ((reader.phaseMask & 1 << phase) != 0) {
+                    row.latency[reader.check].recordMicros(reader.phaseMicros[phase]);
+                }
+            }
+            results.add(count);
+            for (int id = 0; id < errorsById.length; id++) {
+                if (errorsById[id] != 0) {
+                    String name = reader.string(id);
+                    errors.computeIfAbsent(name == null ? "unknown" : name, k -> new LongAdder()).add(errorsById[id]);
+                }
+            }
+        }
+    }
+
+    private static int grow(int length, int index) {
+        return Math.max(index + 1, length * 2);
+    }
+}
@@ -1,24 +1,15 @@
-import java.awt.Desktop;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
-import java.net.URI;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.Properties;
-import java.util.concurrent.CountDownLatch;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.json.JSONObject;
 
-import com.sun.net.httpserver.HttpServer;
-
 import jakarta.mail.AuthenticationFailedException;
 import jakarta.mail.Folder;
 import jakarta.mail.Message;
@@ -36,142 +27,69 @@ import jakarta.mail.internet.MimeMessage;
  */
 public class SmtpConnectionTester {
 
-    private static String authorizationCode = null;
-    private static final CountDownLatch latch = new CountDownLatch(1);
-
     public static void main(String[] args) throws Exception {
         // --- 1. Load Configuration ---
         Properties props = loadProperties();
         if (props == null) return;
+        if (args.length > 0 && "query".equals(args[0])) {
+            ResultsQuery.run(props, args);
+            return;
+        }
 
         final String userEmail = props.getProperty("mail.user");
         final String sharedMailbox = props.getProperty("mail.shared.mailbox.address");
         
-        // --- 2. Get Authorization Code via Browser Flow ---
-        getAuthorizationCode(props);
+        // --- 2. Use a Cached Token, or Run the Browser Flow and Exchange the Code ---
+        String accessToken = OAuthTokenCache.getAccessToken(props, userEmail, () -> {
+            // Separate class, so runs with a cached token never load AWT or the HTTP server.
+            String authorizationCode = BrowserAuthorization.getAuthorizationCode(props);
 
-        if (authorizationCode == null) {
-            System.err.println("Could not obtain authorization code. Exiting.");
-            return;
-        }
-        System.out.println("Successfully obtained authorization code.");
+            if (authorizationCode == null) {
+                System.err.println("Could not obtain authorization code.");
+                return null;
+            }
+            System.out.println("Successfully obtained authorization code.");
 
-        // --- 3. Exchange Authorization Code for Access Token ---
-        System.out.println("\nExchanging authorization code for access token...");
-        String accessToken = exchangeCodeForAccessToken(props);
+            // --- 3. Exchange Authorization Code for Access Token ---
+            System.out.println("\nExchanging authorization code for access token...");
+            return exchangeCodeForAccessToken(props, authorizationCode);
+        });
         if (accessToken == null) {
             System.err.println("Could not obtain access token. Exiting.");
             return;
         }
         System.out.println("Successfully obtained access token.");
         System.out.println("Access Token: "+accessToken);
-        // --- 4. Run Connection Tests ---
-        runConnectionTests(props, userEmail, sharedMailbox, accessToken);
+        // --- 4. Run Connection Tests (or the mode selected on the command line) ---
+        runSelectedMode(args, props, userEmail, sharedMailbox, accessToken);
     }
 
-     /**
-     * Starts a local server, opens a browser for user consent, and captures the authorization code.
+    /**
+     * Exchanges the authorization code for a token response holding the access and refresh tokens.
      */
-    private static void getAuthorizationCode(Properties props) throws IOException {
-        URI redirectUri = URI.create(props.getProperty("mail.oauth.redirect.uri"));
-        int port = redirectUri.getPort();
-
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext(redirectUri.getPath(), httpExchange -> {
-            String query = httpExchange.getRequestURI().getQuery();
-            if (query != null && query.contains("code=")) {
-                String[] params = query.split("&");
-                for (String param : params) {
-                    if (param.startsWith("code=")) {
-                        authorizationCode = param.substring(5);
-                        break;
-                    }
-                }
-                String response = "<html><body><h1>Authorization successful!</h1><p>You can close this browser tab now.</p></body></html>";
-                httpExchange.sendResponseHeaders(200, response.length());
-                try (OutputStream os = httpExchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-            } else {
-                 String errorResponse = "<html><body><h1>Authorization Failed</h1><p>No authorization code was found in the request.</p></body></html>";
-                 httpExchange.sendResponseHeaders(400, errorResponse.length());
-                 try (OutputStream os = httpExchange.getResponseBody()) {
-                    os.write(errorResponse.getBytes());
-                }
-            }
-            latch.countDown();
-        });
-        server.setExecutor(null);
-        server.start();
-        System.out.println("Local server started on port " + port);
-
-        String scope = props.getProperty("mail.oauth.scope", "").replace('+', ' ').replaceAll("\\s+", " ").trim();
-        String authUrl = props.getProperty("mail.oauth.auth.url") + "?" +
-                "client_id=" + URLEncoder.encode(props.getProperty("mail.oauth.client.id"), StandardCharsets.UTF_8) + "&" +
-                "redirect_uri=" + URLEncoder.encode(redirectUri.toString(), StandardCharsets.UTF_8) + "&" +
-                "response_type=code&" +
-                "scope=" + URLEncoder.encode(scope, StandardCharsets.UTF_8) + "&" +
-                "access_type=offline";
-
-        System.out.println("\n--- User Action Required ---");
-        System.out.println("Please open the following URL in your browser, log in, and grant permissions:");
-        System.out.println("\n" + authUrl + "\n");
-
-        try {
-            if (Desktop.isDesktopSupported() && Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
-                Desktop.getDesktop().browse(new URI(authUrl));
-                System.out.println("Your default browser should have opened for authentication.");
-            }
-        } catch (Exception e) {
-            System.err.println("Could not automatically open browser. Please copy/paste the URL manually.");
-        }
-
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            System.err.println("Thread interrupted while waiting for authorization.");
+    private static JSONObject exchangeCodeForAccessToken(Properties props, String authorizationCode) throws IOException {
+        TokenClient.Reply reply = TokenClient.await(TokenClient.post(props.getProperty("mail.oauth.token.url"),
+                tokenRequestBody(props, authorizationCode), "oauth.code_exchange"));
+        if (!reply.isSuccess()) {
+            System.err.println("Error exchanging code for token: HTTP " + reply.status);
+            System.err.println("Error details: " + reply.describe());
+            return null;
         }
-        server.stop(1);
-        System.out.println("Local server stopped.");
+        return reply.body;
     }
 
     /**
-     * Exchanges the authorization code for an access token.
+     * Builds the form-encoded body of the authorization code token request.
      */
-    private static String exchangeCodeForAccessToken(Properties props) throws IOException {
-        URL url = new URL(props.getProperty("mail.oauth.token.url"));
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-        conn.setDoOutput(true);
-
-        String params = Stream.of(
+    static String tokenRequestBody(Properties props, String code) {
+        return Stream.of(
                 new String[]{"client_id", props.getProperty("mail.oauth.client.id")},
                 new String[]{"client_secret", props.getProperty("mail.oauth.client.secret")},
-                new String[]{"code", authorizationCode},
+                new String[]{"code", code},
                 new String[]{"grant_type", "authorization_code"},
                 new String[]{"redirect_uri", props.getProperty("mail.oauth.redirect.uri")}
         ).map(p -> p[0] + "=" + URLEncoder.encode(p[1], StandardCharsets.UTF_8))
          .collect(Collectors.joining("&"));
-
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(params.getBytes());
-        }
-
-        try (InputStream is = conn.getInputStream()) {
-            String response = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-            JSONObject json = new JSONObject(response);
-            return json.getString("access_token");
-        } catch (Exception e) {
-            System.err.println("Error exchanging code for token: " + e.getMessage());
-            try (InputStream es = conn.getErrorStream()) {
-                if (es != null) {
-                    System.err.println("Error details: " + new String(es.readAllBytes()));
-                }
-            }
-            return null;
-        }
     }
 
     /**
@@ -196,49 +114,126 @@ public class SmtpConnectionTester {
      * Runs the sequence of connection tests.
      */
     public static void runConnectionTests(Properties props, String userEmail, String sharedMailbox, String accessToken) {
+        boolean hasSharedMailbox = sharedMailbox != null && !sharedMailbox.trim().isEmpty();
+        ProbeResult result = new ProbeResult(hasSharedMailbox ? sharedMailbox : userEmail);
+        long start = System.nanoTime();
+        ProtocolTrace.begin();
+
         System.out.println("\n--- SMTP Connection Test ---");
-        boolean smtpSuccess = testSmtpConnection(props, userEmail, accessToken);
+        long checkStart = result.beginCheck(ProbeResult.SMTP);
+        boolean smtpSuccess = testSmtpConnection(props, userEmail, accessToken, result);
+        result.endCheck(ProbeResult.SMTP, checkStart);
 
         boolean sharedMailboxAccessSuccess = false;
-        if (smtpSuccess && sharedMailbox != null && !sharedMailbox.trim().isEmpty()) {
+        if (smtpSuccess && hasSharedMailbox) {
             System.out.println("\n--- Shared Mailbox Read Access Test (IMAP) ---");
-            sharedMailboxAccessSuccess = testSharedMailboxConnection(props, userEmail, accessToken, sharedMailbox);
+            checkStart = result.beginCheck(ProbeResult.IMAP);
+            sharedMailboxAccessSuccess = testSharedMailboxConnection(props, userEmail, accessToken, sharedMailbox, result);
+            result.endCheck(ProbeResult.IMAP, checkStart);
 
             if (sharedMailboxAccessSuccess) {
                 System.out.println("\n--- Shared Mailbox Send As Test (SMTP) ---");
-                testSendFromSharedMailbox(props, userEmail, accessToken, sharedMailbox);
+                checkStart = result.beginCheck(ProbeResult.SEND_AS);
+                testSendFromSharedMailbox(props, userEmail, accessToken, sharedMailbox, result);
+                result.endCheck(ProbeResult.SEND_AS, checkStart);
             }
-        } else if (sharedMailbox == null || sharedMailbox.trim().isEmpty()) {
+        } else if (!hasSharedMailbox) {
              System.out.println("\nSkipping shared mailbox tests as 'mail.shared.mailbox.address' is not set.");
         }
+        result.elapsedNanos = System.nanoTime() - start;
+        ProtocolTrace.end(result.mailbox, !result.isSuccess(), result.elapsedNanos);
+        ResultsLog.append(props, result);
+    }
+
+    /**
+     * Runs the mode named by the first command line argument. Without arguments the single-mailbox
+     * connection tests are run, exactly as before modes existed.
+     */
+    public static void runSelectedMode(String[] args, Properties props, String userEmail, String sharedMailbox, String accessToken) throws Exception {
+        String mode = args.length > 0 ? args[0] : "test";
+        try {
+            runMode(mode, args, props, userEmail, sharedMailbox, accessToken);
+        } finally {
+            MailConnectionManager.closeAll();
+            ProtocolTrace.close();
+            ResultsLog.close();
+            LatencyReport.printStartup();
+            TlsSessionCache.printSummary();
+            LatencyReport.write(props);
+        }
+    }
+
+    private static void runMode(String mode, String[] args, Properties props, String userEmail, String sharedMailbox, String accessToken) throws Exception {
+        switch (mode) {
+            case "test":
+                runConnectionTests(props, userEmail, sharedMailbox, accessToken);
+                break;
+            case "fleet":
+                String mailboxFile = args.length > 1 ? args[1] : props.getProperty("mail.fleet.mailboxes.file");
+                if (mailboxFile == null || mailboxFile.trim().isEmpty()) {
+                    System.err.println("Fleet mode needs a mailbox list: pass it as 'fleet <file>' or set 'mail.fleet.mailboxes.file'.");
+                    return;
+                }
+                FleetTester.run(props, userEmail, accessToken, mailboxFile.trim());
+                break;
+            case "daemon":
+                MonitorDaemon.run(props, userEmail, sharedMailbox);
+                break;
+            case "load":
+                SmtpLoadTester.run(props, userEmail, sharedMailbox, accessToken);
+                break;
+            case "scan":
+                ImapScanBenchmark.run(props, userEmail, sharedMailbox, accessToken);
+                break;
+            case "large":
+                LargeMessageSender.run(props, userEmail, sharedMailbox, accessToken);
+                break;
+            case "delivery":
+                DeliveryProbe.run(props, userEmail, sharedMailbox, accessToken);
+                break;
+            default:
+                System.err.println("Unknown mode '" + mode + "'. Supported modes: test, fleet, daemon, load, scan, large, delivery, query.");
+        }
     }
 
     /**
      * Connects to the SMTP server using the provided access token.
      */
-    private static boolean testSmtpConnection(Properties props, String userEmail, String accessToken) {
+    private static boolean testSmtpConnection(Properties props, String userEmail, String accessToken, ProbeResult result) {
         // *** MODIFICATION: All mail properties are now read directly from the 'props' object ***
         final String host = props.getProperty("mail.smtp.host");
         final int port = Integer.parseInt(props.getProperty("mail.smtp.port"));
         System.out.println("SMTP Host: " + host + ", Port: " + port + ", User: " + userEmail);
 
-        Session session = Session.getInstance(props);
-        try (Transport transport = session.getTransport("smtp")) {
-            transport.connect(host, port, userEmail, accessToken);
+        try {
+            connectSmtp(props, userEmail, accessToken);
+            result.smtp = ProbeResult.Status.OK;
             System.out.println("\nSUCCESS: SMTP Connection established successfully!");
             return true;
         } catch (AuthenticationFailedException e) {
+            result.fail(e);
             System.err.println("\nERROR: SMTP OAuth Authentication failed. The access token may be invalid, expired, or not have the correct scope (e.g., SMTP.Send).");
         } catch (MessagingException e) {
-            System.err.println("\nERROR: Failed to connect to the SMTP server. Check host, port, and network connectivity.");
+            result.fail(e);
+            if (!reportThrottle("SMTP server", e)) {
+                System.err.println("\nERROR: Failed to connect to the SMTP server. Check host, port, and network connectivity.");
+            }
         }
         return false;
     }
 
+    /**
+     * Opens and authenticates an SMTP connection without printing anything, so it can be shared by the fleet runner.
+     */
+    static void connectSmtp(Properties props, String userEmail, String accessToken) throws MessagingException {
+        // Always a new connection, so the check covers connect and authentication; the Send As step then reuses it.
+        MailConnectionManager.smtp(props, userEmail, accessToken, true).close();
+    }
+
     /**
      * Connects to a shared mailbox via IMAP using the provided access token.
      */
-    private static boolean testSharedMailboxConnection(Properties props, String userEmail, String accessToken, String sharedMailbox) {
+    private static boolean testSharedMailboxConnection(Properties props, String userEmail, String accessToken, String sharedMailbox, ProbeResult result) {
         // *** MODIFICATION: All mail properties are now read directly from the 'props' object ***
         final String imapHost = props.getProperty("mail.imap.host");
         final int imapPort = Integer.parseInt(props.getProperty("mail.imap.port"));
@@ -248,29 +243,64 @@ public class SmtpConnectionTester {
         System.out.println("Attempting IMAP connection to " + sharedMailbox + " using user " + userEmail);
         System.out.println("IMAP Host: " + imapHost + ", Port: " + imapPort + ", Login User: " + userEmail);
 
-        Session session = Session.getInstance(props);
-        try (Store store = session.getStore("imap")) {
-            store.connect(imapHost, imapPort, sharedMailbox, accessToken);
-            try (Folder inbox = store.getFolder("INBOX")) {
-                inbox.open(Folder.READ_ONLY);
-                System.out.println("INBOX folder opened successfully. Message count: " + inbox.getMessageCount());
-            }
+        try {
+            int messageCount = readSharedInbox(props, accessToken, sharedMailbox);
+            result.imap = ProbeResult.Status.OK;
+            result.messageCount = messageCount;
+            System.out.println("INBOX folder opened successfully. Message count: " + messageCount);
             System.out.println("\nSUCCESS: Shared Mailbox read access test passed for " + sharedMailbox);
             return true;
         } catch (AuthenticationFailedException e) {
+            result.fail(e);
             System.err.println("\nERROR: Shared Mailbox (IMAP) OAuth Authentication failed.");
             System.err.println("Verify the user " + userEmail + " has delegate permissions on the mailbox " + sharedMailbox + ".");
             System.err.println("Ensure your app has the required API permissions (scopes) like 'IMAP.AccessAsUser.All'.");
         } catch (MessagingException e) {
-            System.err.println("\nERROR: Failed to connect to the Shared Mailbox. Check IMAP settings and network connectivity.");
+            result.fail(e);
+            if (!reportThrottle("IMAP server", e)) {
+                System.err.println("\nERROR: Failed to connect to the Shared Mailbox. Check IMAP settings and network connectivity.");
+            }
         }
         return false;
     }
 
+    /**
+     * Explains a throttled check instead of blaming the network. Returns false if the failure was not throttling.
+     */
+    private static boolean reportThrottle(String server, MessagingException e) {
+        Throttle throttle = Throttle.of(e);
+        if (throttle == null) return false;
+        System.err.println("\nERROR: The " + server + " is throttling this client (" + throttle + "): " + e.getMessage());
+        System.err.println("This is a temporary limit, not a configuration problem. Wait "
+                + (throttle.retryAfterMillis > 0 ? "at least " + Math.max(1, throttle.retryAfterMillis / 1000) + " s" : "a few minutes")
+                + " before retrying, or lower the probe rate (see the mail.throttle.* settings).");
+        return true;
+    }
+
+    /**
+     * Logs in to the shared mailbox over IMAP, opens INBOX read-only and returns its message count.
+     */
+    static int readSharedInbox(Properties props, String accessToken, String sharedMailbox) throws MessagingException {
+        try (MailConnectionManager.Lease<Store> store = MailConnectionManager.imap(props, sharedMailbox, accessToken)) {
+            try (Folder inbox = store.get().getFolder("INBOX")) {
+                long start = System.nanoTime();
+                inbox.open(Folder.READ_ONLY);
+                long opened = System.nanoTime();
+                LatencyReport.record("imap.select", opened - start);
+                int messageCount = inbox.getMessageCount();
+                LatencyReport.record("imap.message_count", System.nanoTime() - opened);
+                return messageCount;
+            } catch (MessagingException e) {
+                store.invalidate();
+                throw e;
+            }
+        }
+    }
+
     /**
      * Attempts to send an email FROM the shared mailbox.
      */
-    private static void testSendFromSharedMailbox(Properties props, String userEmail, String accessToken, String sharedMailbox) {
+    private static void testSendFromSharedMailbox(Properties props, String userEmail, String accessToken, String sharedMailbox, ProbeResult result) {
         final String testRecipient = props.getProperty("mail.test.recipient");
         if (testRecipient == null || testRecipient.trim().isEmpty()) {
             System.out.println("Skipping Send As test because 'mail.test.recipient' is not set in properties file.");
@@ -279,32 +309,56 @@ public class SmtpConnectionTester {
 
         System.out.println("Attempting to send a test email from '" + sharedMailbox + "' to '" + testRecipient + "'");
         
-        Session session = Session.getInstance(props);
         try {
-            MimeMessage message = new MimeMessage(session);
-            message.setFrom(new InternetAddress(sharedMailbox));
-            message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(testRecipient));
-            message.setSubject("OAuth Connection Tester - Send As Test");
-            message.setText("This is a test email sent from the OAuth Connection Tester utility to verify 'Send As' permissions for user " + userEmail + " on behalf of " + sharedMailbox);
-            message.setSentDate(new Date());
-
-            try (Transport transport = session.getTransport("smtp")) {
-                transport.connect(props.getProperty("mail.smtp.host"), Integer.parseInt(props.getProperty("mail.smtp.port")), userEmail, accessToken);
-                transport.sendMessage(message, message.getAllRecipients());
-                System.out.println("\n==================================================================");
-                System.out.println("SUCCESS: Send As test passed. Email sent successfully.");
-                System.out.println("Check the inbox of '" + testRecipient + "' for the test message.");
-                System.out.println("==================================================================");
-            }
+            sendAsTestMessage(props, userEmail, accessToken, sharedMailbox, testRecipient);
+            result.sendAs = ProbeResult.Status.OK;
+            System.out.println("\n==================================================================");
+            System.out.println("SUCCESS: Send As test passed. Email sent successfully.");
+            System.out.println("Check the inbox of '" + testRecipient + "' for the test message.");
+            System.out.println("==================================================================");
         } catch (AuthenticationFailedException e) {
+            result.fail(e);
             System.err.println("\nERROR: Send As test failed during authentication.");
             System.err.println("This can happen if the token is valid but does not have the 'Mail.Send.Shared' or equivalent scope.");
             e.printStackTrace();
         } catch (MessagingException e) {
+            result.fail(e);
+            if (reportThrottle("SMTP server", e)) return;
             System.err.println("\nERROR: Send As test failed. The server rejected the request.");
             System.err.println("Verify that the user '" + userEmail + "' has 'Send As' or 'Send on Behalf' permissions for the mailbox '" + sharedMailbox + "'.");
             System.err.println("Also ensure the application has the 'Mail.Send.Shared' API permission.");
             e.printStackTrace();
         }
     }
+
+    /**
+     * Sends the Send As test message from the shared mailbox to the given recipient.
+     */
+    static void sendAsTestMessage(Properties props, String userEmail, String accessToken, String sharedMailbox, String testRecipient) throws MessagingException {
+        MimeMessage message = sendAsMessage(MailConnectionManager.session(props), userEmail, sharedMailbox, testRecipient);
+
+        try (MailConnectionManager.Lease<Transport> transport = MailConnectionManager.smtp(props, userEmail, accessToken)) {
+            try {
+                long start = System.nanoTime();
+                transport.get().sendMessage(message, message.getAllRecipients());
+                LatencyReport.record("smtp.send", System.nanoTime() - start);
+            } catch (MessagingException e) {
+                transport.invalidate();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Builds the Send As test message from the shared mailbox to the given recipient.
+     */
+    static MimeMessage sendAsMessage(Session session, String userEmail, String sharedMailbox, String testRecipient) throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(sharedMailbox));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(testRecipient));
+        message.setSubject("OAuth Connection Tester - Send As Test");
+        message.setText("This is a test email sent from the OAuth Connection Tester utility to verify 'Send As' permissions for user " + userEmail + " on behalf of " + sharedMailbox);
+        message.setSentDate(new Date());
+        return message;
+    }
 }
@@ -1,12 +1,13 @@
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 
@@ -16,17 +17,43 @@ import org.json.JSONObject;
  */
 public class SmtpConnectionTesterDeviceFlow {
 
+    private static final DeviceFlowScheduler scheduler = new DeviceFlowScheduler();
+
     public static void main(String[] args) throws Exception {
         // --- 1. Load Configuration ---
         Properties props = loadProperties();
         if (props == null) return;
+        run(args, props);
+    }
 
+    /**
+     * Signs in (or enrolls users) and runs the selected mode with an already loaded configuration.
+     * Query mode only reads the results log, so it runs without signing in.
+     */
+    static void run(String[] args, Properties props) throws Exception {
+        if (args.length > 0 && "query".equals(args[0])) {
+            ResultsQuery.run(props, args);
+            return;
+        }
         final String userEmail = props.getProperty("mail.user");
         final String sharedMailbox = props.getProperty("mail.shared.mailbox.address");
         
-        // --- 2. Get Access Token via Device Code Flow ---
-        System.out.println("--- Starting OAuth 2.0 Device Code Flow ---");
-        String accessToken = getAccessTokenViaDeviceFlow(props);
+        if (args.length > 0 && "enroll".equals(args[0])) {
+            String usersFile = args.length > 1 ? args[1] : props.getProperty("mail.fleet.mailboxes.file");
+            if (usersFile == null || usersFile.trim().isEmpty()) {
+                System.err.println("Enroll mode needs a user list: pass it as 'enroll <file>' or set 'mail.fleet.mailboxes.file'.");
+                return;
+            }
+            enrollUsers(props, usersFile.trim());
+            LatencyReport.write(props);
+            return;
+        }
+
+        // --- 2. Use a Cached Token, or Get One via Device Code Flow ---
+        String accessToken = OAuthTokenCache.getAccessToken(props, userEmail, () -> {
+            System.out.println("--- Starting OAuth 2.0 Device Code Flow ---");
+            return getAccessTokenViaDeviceFlow(props);
+        });
 
         if (accessToken == null) {
             System.err.println("\nFailed to obtain access token. Exiting.");
@@ -34,111 +61,82 @@ public class SmtpConnectionTesterDeviceFlow {
         }
         System.out.println("\nSuccessfully obtained access token.");
         System.out.println("Access Token: "+accessToken);
-        // --- 3. Run Connection Tests ---
+        // --- 3. Run Connection Tests (or the mode selected on the command line) ---
         // We can reuse the test methods from the other class.
-        SmtpConnectionTester.runConnectionTests(props, userEmail, sharedMailbox, accessToken);
+        SmtpConnectionTester.runSelectedMode(args, props, userEmail, sharedMailbox, accessToken);
     }
 
     /**
-     * Obtains an access token using the OAuth 2.0 Device Code Flow.
+     * Obtains a token response (access and refresh tokens) using the OAuth 2.0 Device Code Flow.
      */
-    private static String getAccessTokenViaDeviceFlow(Properties props) throws IOException, InterruptedException {
+    private static JSONObject getAccessTokenViaDeviceFlow(Properties props) throws IOException, InterruptedException {
         // Part 1: Request a device and user code
-        String deviceCodeUrl = props.getProperty("mail.oauth.devicecode.url");
-        String clientId = props.getProperty("mail.oauth.client.id");
-        String scope = props.getProperty("mail.oauth.scope", "").replace('+', ' ').replaceAll("\\s+", " ").trim();
-        
-        String deviceCodePayload = "client_id=" + URLEncoder.encode(clientId, StandardCharsets.UTF_8) +
-                                 "&scope=" + URLEncoder.encode(scope, StandardCharsets.UTF_8);
-
-        HttpURLConnection conn = (HttpURLConnection) new URL(deviceCodeUrl).openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-        conn.setDoOutput(true);
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(deviceCodePayload.getBytes());
-        }
-
-        JSONObject deviceCodeResponse;
-        try (InputStream is = conn.getInputStream()) {
-            deviceCodeResponse = new JSONObject(new String(is.readAllBytes(), StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            System.err.println("Failed to get device code. Check your client_id and device code URL.");
-            try(InputStream es = conn.getErrorStream()) {
-                if (es != null) {
-                    System.err.println("Error details: " + new String(es.readAllBytes()));
-                }
-            }
-            throw e;
-        }
-
-        String userCode = deviceCodeResponse.getString("user_code");
-        String deviceCode = deviceCodeResponse.getString("device_code");
-        String verificationUri = deviceCodeResponse.getString("verification_uri");
-        int interval = deviceCodeResponse.getInt("interval");
-        int expiresIn = deviceCodeResponse.getInt("expires_in");
+        JSONObject deviceCodeResponse = requestDeviceCode(props);
 
         // Part 2: Display instructions to the user
         System.out.println("\n--- User Action Required ---");
         System.out.println("To sign in, use a web browser to open the page:");
-        System.out.println(verificationUri);
+        System.out.println(deviceCodeResponse.getString("verification_uri"));
         System.out.println("And enter the code to authenticate:");
-        System.out.println(userCode);
+        System.out.println(deviceCodeResponse.getString("user_code"));
         System.out.println("\nWaiting for you to authenticate in the browser...");
 
         // Part 3: Poll for the token
-        long startTime = System.currentTimeMillis();
-        String tokenUrl = props.getProperty("mail.oauth.token.url");
-        String clientSecret = props.getProperty("mail.oauth.client.secret");
-
-        // Build the polling payload
-        StringBuilder tokenPayloadBuilder = new StringBuilder();
-        tokenPayloadBuilder.append("grant_type=urn:ietf:params:oauth:grant-type:device_code");
-        tokenPayloadBuilder.append("&client_id=").append(URLEncoder.encode(clientId, StandardCharsets.UTF_8));
-        tokenPayloadBuilder.append("&device_code=").append(URLEncoder.encode(deviceCode, StandardCharsets.UTF_8));
-        
-        // *** MODIFICATION START ***
-        // Add client_secret if it exists. This handles the AADSTS7000218 error for app registrations 
-        // that are not correctly configured as public clients. The recommended fix is to enable
-        // "Allow public client flows" in the Azure App Registration.
-        if (clientSecret != null && !clientSecret.trim().isEmpty()) {
-             tokenPayloadBuilder.append("&client_secret=").append(URLEncoder.encode(clientSecret, StandardCharsets.UTF_8));
+        try {
+            return scheduler.poll(props, deviceCodeResponse).get();
+        } catch (ExecutionException e) {
+            System.err.println("Error polling for token: " + e.getCause().getMessage());
+            return null;
         }
-        // *** MODIFICATION END ***
-        String tokenPayload = tokenPayloadBuilder.toString();
-
-        while ((System.currentTimeMillis() - startTime) < (expiresIn * 1000L)) {
-            Thread.sleep(interval * 1000L); 
+    }
 
-            HttpURLConnection tokenConn = (HttpURLConnection) new URL(tokenUrl).openConnection();
-            tokenConn.setRequestMethod("POST");
-            tokenConn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            tokenConn.setDoOutput(true);
-            try (OutputStream os = tokenConn.getOutputStream()) {
-                os.write(tokenPayload.getBytes());
-            }
+    private static JSONObject requestDeviceCode(Properties props) throws IOException {
+        TokenClient.Reply reply = TokenClient.await(TokenClient.requestDeviceCode(props));
+        if (reply.status != 200 || !reply.body.has("device_code")) {
+            System.err.println("Failed to get device code. Check your client_id and device code URL.");
+            System.err.println("Error details: " + reply.describe());
+            throw new IOException("Device code request failed with HTTP " + reply.status);
+        }
+        return reply.body;
+    }
 
-            if (tokenConn.getResponseCode() == 200) {
-                try (InputStream is = tokenConn.getInputStream()) {
-                    JSONObject tokenResponse = new JSONObject(new String(is.readAllBytes(), StandardCharsets.UTF_8));
-                    return tokenResponse.getString("access_token");
+    /**
+     * Signs in every user listed in the file (one address per line) and stores their tokens in the token
+     * cache. All device codes are requested up front and polled concurrently by the one scheduler thread,
+     * so each person can complete their sign-in whenever they get to it.
+     */
+    private static void enrollUsers(Properties props, String usersFile) throws IOException {
+        List<String> users = FleetTester.readMailboxes(usersFile);
+        System.out.println("\n--- Enrolling " + users.size() + " users via Device Code Flow ---");
+        AtomicInteger enrolled = new AtomicInteger();
+        List<CompletableFuture<Void>> signIns = new ArrayList<>();
+        for (String user : users) {
+            signIns.add(TokenClient.requestDeviceCode(props).thenCompose(reply -> {
+                if (reply.status != 200 || !reply.body.has("device_code")) {
+                    return CompletableFuture.failedFuture(new IOException("device code request failed: " + reply.describe()));
                 }
-            } else {
-                try (InputStream es = tokenConn.getErrorStream()) {
-                    if (es != null) {
-                        String errorBody = new String(es.readAllBytes(), StandardCharsets.UTF_8);
-                        JSONObject errorResponse = new JSONObject(errorBody);
-                        if (!"authorization_pending".equals(errorResponse.optString("error"))) {
-                            System.err.println("Error polling for token: " + errorResponse.toString(2));
-                            return null;
-                        }
-                    }
+                synchronized (System.out) {
+                    System.out.println(user + ": open " + reply.body.getString("verification_uri")
+                            + " and enter " + reply.body.getString("user_code"));
                 }
-            }
+                return scheduler.poll(props, reply.body);
+            }).handle((response, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    System.err.println(user + ": FAILED - " + cause.getMessage());
+                } else {
+                    OAuthTokenCache.put(props, user, response);
+                    enrolled.incrementAndGet();
+                    System.out.println(user + ": signed in");
+                }
+                return null;
+            }));
         }
+        CompletableFuture.allOf(signIns.toArray(new CompletableFuture<?>[0])).join();
 
-        System.err.println("Authentication timed out.");
-        return null;
+        System.out.println("\n==================================================================");
+        System.out.println("Enrolled " + enrolled.get() + " of " + users.size() + " users.");
+        System.out.println("==================================================================");
     }
 
     /**
@@ -0,0 +1,232 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.eclipse.angus.mail.smtp.SMTPTransport;
+
+/**
+ * Load mode: measures how many messages per second the Send As relay path sustains.
+ *
+ * N connections each authenticate once and then send M messages over the same transport, either as
+ * fast as the server accepts them (closed loop) or paced to a combined target rate. Messages are
+ * rendered once per configured size before the run, so the send loop only stamps a Message-ID.
+ * Reports messages/s, bytes/s, per-send latency percentiles and the SMTP reply codes seen.
+ *
+ * Sends go through a {@link HostLimiter}: when the server throttles, fewer connections send at a time
+ * and all of them pause for the backoff, so the run settles at the rate the server sustains.
+ */
+public class SmtpLoadTester {
+
+    private final Properties props;
+    private final String userEmail;
+    private final String accessToken;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final ConcurrentHashMap<Integer, LongAdder> replyCodes = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final HostLimiter limiter;
+    private final String host;
+    private final AtomicLong nextSlot = new AtomicLong();
+    private long slotNanos;
+
+    private SmtpLoadTester(Properties props, String userEmail, String accessToken, int connections) {
+        this.props = props;
+        this.userEmail = userEmail;
+        this.accessToken = accessToken;
+        this.limiter = new HostLimiter(connections, props);
+        this.host = props.getProperty("mail.smtp.host");
+    }
+
+    public static void run(Properties props, String userEmail, String sharedMailbox, String accessToken) throws Exception {
+        String recipient = props.getProperty("mail.test.recipient", "").trim();
+        if (recipient.isEmpty()) {
+            System.err.println("Load mode needs 'mail.test.recipient' to be set.");
+            return;
+        }
+        String from = sharedMailbox == null || sharedMailbox.trim().isEmpty() ? userEmail : sharedMailbox.trim();
+        int connections = Integer.parseInt(props.getProperty("mail.load.connections", "4").trim());
+        int perConnection = Integer.parseInt(props.getProperty("mail.load.messages.per.connection", "100").trim());
+        double rate = Double.parseDouble(props.getProperty("mail.load.rate", "0").trim());
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : props.getProperty("mail.load.message.sizes", "2048").split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+
+        SmtpLoadTester tester = new SmtpLoadTester(props, userEmail, accessToken, connections);
+        System.out.println("\n--- SMTP Load Test ---");
+        System.out.println(connections + " connections x " + perConnection + " messages, sizes " + sizes + " bytes, "
+                + (rate > 0 ? "target " + rate + " msgs/s" : "closed loop") + ", from '" + from + "' to '" + recipient + "'");
+        tester.execute(from, recipient, sizes, connections, perConnection, rate);
+    }
+
+    private void execute(String from, String recipient, List<Integer> sizes, int connections, int perConnection, double rate) throws Exception {
+        Session session = MailConnectionManager.session(props);
+        List<byte[]> rendered = new ArrayList<>();
+        for (int size : sizes) {
+            rendered.add(render(session, from, recipient, size));
+        }
+        Address[] recipients = InternetAddress.parse(recipient);
+
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        long start = System.nanoTime();
+        slotNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+        nextSlot.set(start);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int c = 0; c < connections; c++) {
+                final int connection = c;
+                workers.add(pool.submit(() -> {
+                    sendLoop(session, rendered, recipients, connection, perConnection);
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * Renders a message of roughly the given size once, before the timed run starts.
+     */
+    private static byte[] render(Session session, String from, String recipient, int size) throws MessagingException, IOException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(from));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipient));
+        message.setSubject("OAuth Connection Tester - Load Test (" + size + " bytes)");
+        message.setSentDate(new Date());
+
+        StringBuilder body = new StringBuilder(size + 80);
+        String line = "The quick brown fox jumps over the lazy dog while the load test measures throughput.\r\n";
+        while (body.length() < size) {
+            body.append(line);
+        }
+        body.setLength(size);
+        message.setText(body.toString(), "us-ascii");
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 1024);
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private void sendLoop(Session session, List<byte[]> rendered, Address[] recipients, int connection, int count) throws Exception {
+        // Each worker keeps its own parsed copies: MimeMessage is not thread-safe, and a parsed message
+        // writes its content back out verbatim.
+        MimeMessage[] templates = new MimeMessage[rendered.size()];
+        int[] templateBytes = new int[rendered.size()];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = new MimeMessage(session, new ByteArrayInputStream(rendered.get(i)));
+            templateBytes[i] = rendered.get(i).length;
+        }
+        String idPrefix = "<load-" + Long.toHexString(System.currentTimeMillis()) + "-" + connection + "-";
+        String idSuffix = "@" + userEmail.substring(userEmail.indexOf('@') + 1) + ">";
+
+        MailConnectionManager.Lease<Transport> lease = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                int t = i % templates.length;
+                MimeMessage message = templates[t];
+                message.setHeader("Message-ID", idPrefix + i + idSuffix);
+
+                long intended = System.nanoTime();
+                if (slotNanos > 0) {
+                    intended = nextSlot.getAndAdd(slotNanos);
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                }
+
+                limiter.acquire(host);
+                try {
+                    if (lease == null) {
+                        lease = MailConnectionManager.smtp(props, userEmail, accessToken);
+                    }
+                    lease.get().sendMessage(message, recipients);
+                    // Paced sends are measured from their scheduled time, so a stalled server shows up
+                    // as latency instead of silently lowering the offered rate.
+                    latencies.recordNanos(System.nanoTime() - intended);
+                    sent.increment();
+                    bytesSent.add(templateBytes[t]);
+                    countReply(((SMTPTransport) lease.get()).getLastReturnCode());
+                    limiter.succeeded(host);
+                } catch (MessagingException e) {
+                    failed.increment();
+                    countReply(replyCode(e, lease));
+                    Throttle throttle = Throttle.of(e);
+                    if (throttle != null) {
+                        throttled.increment();
+                        limiter.throttled(host, throttle);
+                    }
+                    if (lease != null) {
+                        lease.invalidate();
+                        lease.close();
+                        lease = null;
+                    }
+                } finally {
+                    limiter.release(host);
+                }
+            }
+        } finally {
+            if (lease != null) lease.close();
+        }
+    }
+
+    private static int replyCode(MessagingException e, MailConnectionManager.Lease<Transport> lease) {
+        if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode();
+        }
+        if (lease != null) {
+            return ((SMTPTransport) lease.get()).getLastReturnCode();
+        }
+        return -1; // never got as far as a reply: connect or authentication failed
+    }
+
+    private void countReply(int code) {
+        replyCodes.computeIfAbsent(code, c -> new LongAdder()).increment();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        LatencyReport.histogram("load.send").merge(latencies);
+        System.out.println("\n==================================================================");
+        System.out.printf("Sent %d messages (%d failed) in %.2f s%n", sent.sum(), failed.sum(), seconds);
+        System.out.printf("Throughput: %.1f msgs/s, %.1f KB/s%n", sent.sum() / seconds, bytesSent.sum() / 1024.0 / seconds);
+        System.out.printf("Send latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                latencies.percentileMicros(50) / 1000.0, latencies.percentileMicros(90) / 1000.0,
+                latencies.percentileMicros(99) / 1000.0, latencies.maxMicros() / 1000.0);
+        Map<Integer, Long> codes = new TreeMap<>();
+        replyCodes.forEach((code, count) -> codes.put(code, count.sum()));
+        System.out.println("SMTP reply codes: " + codes + (codes.containsKey(-1) ? " (-1 = no reply, connect or auth failed)" : ""));
+        if (throttled.sum() > 0) {
+            System.out.println("Throttled sends: " + throttled.sum() + "; concurrency settled at " + limiter.describe());
+        }
+        System.out.println("==================================================================");
+    }
+}
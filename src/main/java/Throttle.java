@@ -0,0 +1,101 @@
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.StoreClosedException;
+
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+
+/**
+ * A throttling answer from Exchange Online, recognised in an exception or a token endpoint reply.
+ *
+ * Recognised are SMTP '421' replies and '4xx 4.7.x' replies (at connect or during a transaction), tagged
+ * IMAP 'NO ... throttled' replies (with their 'Suggested Backoff Time'), IMAP 'BYE' answers to a connect or
+ * login, and HTTP 429 from the token endpoint (with its Retry-After). A BYE that closes an open store or
+ * folder (an idle timeout, a server shutting down) is an ordinary failure, as is everything else.
+ */
+public class Throttle {
+
+    private static final Pattern SMTP_REPLY = Pattern.compile("(?<![\\d.])(4\\d\\d)[ -](?:(\\d\\.\\d{1,3}\\.\\d{1,3})\\s)?");
+    // "A3 NO Request is throttled. ..." as Jakarta Mail reports a failed command: tag, NO, text.
+    private static final Pattern IMAP_THROTTLED = Pattern.compile("^[A-Za-z0-9.]+ NO .*\\bthrottled\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern IMAP_BACKOFF = Pattern.compile("Suggested Backoff Time: (\\d+) milliseconds", Pattern.CASE_INSENSITIVE);
+
+    /** Short description, e.g. "smtp 421 4.7.26", "imap NO throttled", "imap BYE" or "http 429". */
+    final String kind;
+
+    /** How long the server asked us to wait, or -1 if it did not say. */
+    final long retryAfterMillis;
+
+    Throttle(String kind, long retryAfterMillis) {
+        this.kind = kind;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Classifies a failed SMTP or IMAP operation. Returns null if it was not throttled.
+     * The whole cause chain is searched.
+     */
+    static Throttle of(Throwable failure) {
+        // MessagingException.getCause() is the next exception, so this also walks nested SMTP replies.
+        int depth = 0;
+        boolean sessionClosed = false;
+        for (Throwable e = failure; e != null && depth++ < 10; e = e.getCause()) {
+            sessionClosed |= e instanceof FolderClosedException || e instanceof StoreClosedException;
+            Throttle throttle = classify(e, sessionClosed);
+            if (throttle != null) return throttle;
+        }
+        return null;
+    }
+
+    /**
+     * Classifies a token endpoint reply. Returns null if it was not throttled.
+     */
+    static Throttle of(TokenClient.Reply reply) {
+        if (reply.status != 429) return null;
+        return new Throttle("http 429", reply.retryAfterSeconds >= 0 ? reply.retryAfterSeconds * 1000L : -1);
+    }
+
+    /**
+     * Classifies one exception of a cause chain. 'sessionClosed' says whether an exception further up the
+     * chain reported an open store or folder being closed, which rules a BYE out as throttling.
+     */
+    static Throttle classify(Throwable e, boolean sessionClosed) {
+        String message = e.getMessage() == null ? "" : e.getMessage();
+        if (e instanceof SMTPSendFailedException) {
+            int code = ((SMTPSendFailedException) e).getReturnCode();
+            Matcher reply = SMTP_REPLY.matcher(message);
+            String enhanced = reply.find() ? reply.group(2) : null;
+            return smtp(code, enhanced);
+        }
+        // A refused AUTHENTICATE is reported without its tag, as just the text of the NO.
+        boolean refusedLogin = e instanceof AuthenticationFailedException && message.toLowerCase().contains("throttled");
+        if (refusedLogin || IMAP_THROTTLED.matcher(message).find()) {
+            Matcher backoff = IMAP_BACKOFF.matcher(message);
+            return new Throttle("imap NO throttled", backoff.find() ? Long.parseLong(backoff.group(1)) : -1);
+        }
+        if (message.startsWith("* BYE")) {
+            return sessionClosed ? null : new Throttle("imap BYE", -1);
+        }
+        // Angus reports refused greetings and dropped transactions in the text, e.g. "... response: 421 4.7.0 ...".
+        int response = message.indexOf("response: ");
+        if (response >= 0) {
+            Matcher reply = SMTP_REPLY.matcher(message);
+            if (reply.find(response)) {
+                return smtp(Integer.parseInt(reply.group(1)), reply.group(2));
+            }
+        }
+        return null;
+    }
+
+    private static Throttle smtp(int code, String enhanced) {
+        boolean throttled = code == 421 || (code / 100 == 4 && enhanced != null && enhanced.startsWith("4.7."));
+        return throttled ? new Throttle("smtp " + code + (enhanced != null ? " " + enhanced : ""), -1) : null;
+    }
+
+    @Override
+    public String toString() {
+        return retryAfterMillis >= 0 ? kind + ", retry after " + retryAfterMillis + " ms" : kind;
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * One SSL context per protocol, and so one TLS session cache, shared by every SMTP STARTTLS or every IMAPS
+ * connection of a mail session, so that connections after the first to a host resume its TLS session
+ * instead of doing a full handshake.
+ *
+ * Jakarta Mail normally builds a fresh context for every connection when 'mail.smtp.ssl.trust' or
+ * 'mail.imap.ssl.trust' is set, which rules resumption out. Here each protocol's trusted hosts are honoured
+ * by the trust manager of that protocol's context instead, so trusting a host (or '*') for SMTP does not
+ * trust it for IMAP; other hosts are checked against the JVM's trust store as usual. The cache holds 'mail.tls.session.cache.size' sessions for 'mail.tls.session.cache.timeout.seconds'.
+ * With TLS 1.3 a cached session is only good for one resumption (each handshake leaves a fresh one), so of
+ * several connections opened to a host at the same moment only one resumes.
+ *
+ * Every handshake is timed and recorded as '&lt;protocol&gt;.tls_full_handshake' or
+ * '&lt;protocol&gt;.tls_resumed_handshake'. A handshake counts as resumed when its session was created
+ * before the handshake began.
+ */
+public class TlsSessionCache {
+
+    private final Map<String, SSLContext> contexts = new HashMap<>();
+
+    private TlsSessionCache(Properties props) throws GeneralSecurityException {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init((KeyStore) null);
+        X509ExtendedTrustManager defaults = null;
+        for (TrustManager manager : factory.getTrustManagers()) {
+            if (manager instanceof X509ExtendedTrustManager) defaults = (X509ExtendedTrustManager) manager;
+        }
+        if (defaults == null) throw new GeneralSecurityException("No X509 trust manager available");
+
+        for (String protocol : new String[]{"smtp", "imap"}) {
+            String trust = props.getProperty("mail." + protocol + ".ssl.trust", "").trim();
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{new HostTrustManager(defaults, trust)}, null);
+            context.getClientSessionContext().setSessionCacheSize(
+                    Integer.parseInt(props.getProperty("mail.tls.session.cache.size", "1000").trim()));
+            context.getClientSessionContext().setSessionTimeout(
+                    Integer.parseInt(props.getProperty("mail.tls.session.cache.timeout.seconds", "7200").trim()));
+            contexts.put(protocol, context);
+        }
+    }
+
+    /**
+     * Returns the session cache for this configuration, or null if 'mail.tls.session.cache.enable' is false.
+     */
+    static TlsSessionCache create(Properties props) {
+        if (!Boolean.parseBoolean(props.getProperty("mail.tls.session.cache.enable", "true").trim())) return null;
+        try {
+            return new TlsSessionCache(props);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not set up the shared TLS contexts", e);
+        }
+    }
+
+    /**
+     * Returns the socket factory Jakarta Mail uses for STARTTLS, installed as 'mail.&lt;protocol&gt;.ssl.socketFactory'.
+     */
+    SSLSocketFactory socketFactory(String protocol) {
+        return new Factory(protocol);
+    }
+
+    /**
+     * Wraps an unconnected socket so that TLS is layered on it, using the protocol's context, once it connects.
+     * This is how implicit TLS (IMAPS) keeps the connect of {@link ProbeSocketFactory}.
+     */
+    SSLSocket wrap(String protocol, Socket plain) {
+        return new TlsSocket(plain, this, protocol);
+    }
+
+    SSLSocket layer(String protocol, Socket connected, String host, int port, boolean autoClose) throws IOException {
+        return (SSLSocket) context(protocol).getSocketFactory().createSocket(connected, host, port, autoClose);
+    }
+
+    private SSLContext context(String protocol) {
+        SSLContext context = contexts.get(protocol);
+        if (context == null) throw new IllegalArgumentException("No TLS context for protocol '" + protocol + "'");
+        return context;
+    }
+
+    /**
+     * Records a completed handshake as full or resumed.
+     */
+    static void recordHandshake(String protocol, SSLSession session, long startMillis, long elapsedNanos) {
+        boolean resumed = session.getCreationTime() < startMillis;
+        LatencyReport.record(protocol + (resumed ? ".tls_resumed_handshake" : ".tls_full_handshake"), elapsedNanos);
+    }
+
+    /**
+     * Prints how many handshakes were resumed and how long full and resumed handshakes took.
+     */
+    static void printSummary() {
+        Map<String, LatencyHistogram> phases = LatencyReport.snapshot();
+        boolean first = true;
+        for (String protocol : new String[]{"smtp", "imap"}) {
+            LatencyHistogram full = phases.get(protocol + ".tls_full_handshake");
+            LatencyHistogram resumed = phases.get(protocol + ".tls_resumed_handshake");
+            if (full == null && resumed == null) continue;
+            if (first) System.out.println();
+            first = false;
+            System.out.printf("TLS handshakes (%s): %s full, %s resumed%n", protocol, describe(full), describe(resumed));
+        }
+    }
+
+    private static String describe(LatencyHistogram handshakes) {
+        if (handshakes == null) return "0";
+        return String.format("%d (p50 %.1f ms, p99 %.1f ms)", handshakes.count(),
+                handshakes.percentileMicros(50) / 1000.0, handshakes.percentileMicros(99) / 1000.0);
+    }
+
+    private final class Factory extends SSLSocketFactory {
+        private final String protocol;
+
+        Factory(String protocol) {
+            this.protocol = protocol;
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            TlsSocket tls = new TlsSocket(socket, TlsSessionCache.this, protocol);
+            tls.layer(host, port, autoClose);
+            return tls;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return context(protocol).getSocketFactory().getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return context(protocol).getSocketFactory().getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return context(protocol).getSocketFactory().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return context(protocol).getSocketFactory().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return context(protocol).getSocketFactory().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return context(protocol).getSocketFactory().createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    /**
+     * Accepts any certificate from the hosts named in one protocol's 'mail.&lt;protocol&gt;.ssl.trust', as
+     * Jakarta Mail does, and leaves every other host to the default trust manager.
+     */
+    private static final class HostTrustManager extends X509ExtendedTrustManager {
+        private final X509ExtendedTrustManager defaults;
+        private final Set<String> trustedHosts = new HashSet<>();
+        private final boolean trustAllHosts;
+
+        HostTrustManager(X509ExtendedTrustManager defaults, String trust) {
+            this.defaults = defaults;
+            this.trustAllHosts = trust.equals("*");
+            if (!trustAllHosts && !trust.isEmpty()) trustedHosts.addAll(Arrays.asList(trust.split("\\s+")));
+        }
+
+        private boolean trusted(SSLSession handshake) {
+            return trustAllHosts || (handshake != null && trustedHosts.contains(handshake.getPeerHost()));
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            if (socket instanceof SSLSocket && trusted(((SSLSocket) socket).getHandshakeSession())) return;
+            defaults.checkServerTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            if (engine != null && trusted(engine.getHandshakeSession())) return;
+            defaults.checkServerTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            if (trustAllHosts) return;
+            defaults.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            defaults.checkClientTrusted(chain, authType, socket);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            defaults.checkClientTrusted(chain, authType, engine);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            defaults.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return defaults.getAcceptedIssuers();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A TLS socket from the {@link TlsSessionCache}, layered on a plain socket that connects on its own.
+ *
+ * For STARTTLS the plain socket is already connected and TLS is layered at once; for implicit TLS it is
+ * layered when the plain socket (a {@link RacingSocket}, say) has connected, so the TCP connect is still
+ * raced and timed separately. Everything else is delegated to the layered socket, and its first handshake
+ * is timed.
+ */
+class TlsSocket extends SSLSocket {
+
+    private final Socket plain;
+    private final TlsSessionCache cache;
+    private final String protocol;
+
+    private SSLSocket ssl;
+    private boolean handshakeRecorded;
+
+    TlsSocket(Socket plain, TlsSessionCache cache, String protocol) {
+        this.plain = plain;
+        this.cache = cache;
+        this.protocol = protocol;
+    }
+
+    void layer(String host, int port, boolean autoClose) throws IOException {
+        ssl = cache.layer(protocol, plain, host, port, autoClose);
+    }
+
+    private SSLSocket layered() {
+        if (ssl == null) throw new IllegalStateException("Socket is not connected");
+        return ssl;
+    }
+
+    private Socket current() {
+        return ssl != null ? ssl : plain;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint) throws IOException {
+        connect(endpoint, 0);
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        if (ssl != null) throw new SocketException("Already connected");
+        plain.connect(endpoint, timeout);
+        InetSocketAddress target = (InetSocketAddress) endpoint;
+        try {
+            layer(target.getHostString(), target.getPort(), true);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void startHandshake() throws IOException {
+        SSLSocket socket = layered();
+        if (handshakeRecorded) {
+            socket.startHandshake();
+            return;
+        }
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        socket.startHandshake();
+        long elapsed = System.nanoTime() - start;
+        handshakeRecorded = true;
+        TlsSessionCache.recordHandshake(protocol, socket.getSession(), startMillis, elapsed);
+    }
+
+    @Override
+    public SSLSession getSession() {
+        return layered().getSession();
+    }
+
+    @Override
+    public SSLSession getHandshakeSession() {
+        return layered().getHandshakeSession();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return layered().getSupportedCipherSuites();
+    }
+
+    @Override
+    public String[] getEnabledCipherSuites() {
+        return layered().getEnabledCipherSuites();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] suites) {
+        layered().setEnabledCipherSuites(suites);
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return layered().getSupportedProtocols();
+    }
+
+    @Override
+    public String[] getEnabledProtocols() {
+        return layered().getEnabledProtocols();
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols) {
+        layered().setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public SSLParameters getSSLParameters() {
+        return layered().getSSLParameters();
+    }
+
+    @Override
+    public void setSSLParameters(SSLParameters params) {
+        layered().setSSLParameters(params);
+    }
+
+    @Override
+    public String getApplicationProtocol() {
+        return layered().getApplicationProtocol();
+    }
+
+    @Override
+    public String getHandshakeApplicationProtocol() {
+        return layered().getHandshakeApplicationProtocol();
+    }
+
+    @Override
+    public void setHandshakeApplicationProtocolSelector(BiFunction<SSLSocket, List<String>, String> selector) {
+        layered().setHandshakeApplicationProtocolSelector(selector);
+    }
+
+    @Override
+    public BiFunction<SSLSocket, List<String>, String> getHandshakeApplicationProtocolSelector() {
+        return layered().getHandshakeApplicationProtocolSelector();
+    }
+
+    @Override
+    public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+        layered().addHandshakeCompletedListener(listener);
+    }
+
+    @Override
+    public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+        layered().removeHandshakeCompletedListener(listener);
+    }
+
+    @Override
+    public void setUseClientMode(boolean mode) {
+        layered().setUseClientMode(mode);
+    }
+
+    @Override
+    public boolean getUseClientMode() {
+        return layered().getUseClientMode();
+    }
+
+    @Override
+    public void setNeedClientAuth(boolean need) {
+        layered().setNeedClientAuth(need);
+    }
+
+    @Override
+    public boolean getNeedClientAuth() {
+        return layered().getNeedClientAuth();
+    }
+
+    @Override
+    public void setWantClientAuth(boolean want) {
+        layered().setWantClientAuth(want);
+    }
+
+    @Override
+    public boolean getWantClientAuth() {
+        return layered().getWantClientAuth();
+    }
+
+    @Override
+    public void setEnableSessionCreation(boolean flag) {
+        layered().setEnableSessionCreation(flag);
+    }
+
+    @Override
+    public boolean getEnableSessionCreation() {
+        return layered().getEnableSessionCreation();
+    }
+
+    @Override
+    public void bind(SocketAddress bindpoint) throws IOException {
+        plain.bind(bindpoint);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return layered().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return layered().getOutputStream();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return current().getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return current().getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return current().getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return current().getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return current().getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return current().getLocalSocketAddress();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        current().setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return current().getSoTimeout();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        current().setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return current().getTcpNoDelay();
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException {
+        current().setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return current().getKeepAlive();
+    }
+
+    @Override
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        current().setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger() throws SocketException {
+        return current().getSoLinger();
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        current().setSendBufferSize(size);
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return current().getSendBufferSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) throws SocketException {
+        current().setReceiveBufferSize(size);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws SocketException {
+        return current().getReceiveBufferSize();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        current().shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        current().shutdownOutput();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return current().isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return current().isBound();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return current().isClosed();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return current().isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return current().isOutputShutdown();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        current().close();
+        super.close();
+    }
+
+    @Override
+    public String toString() {
+        return "TlsSocket[" + current() + "]";
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Non-blocking client for the OAuth token and device code endpoints.
+ *
+ * All token traffic goes through one HttpClient, so requests to the token endpoint reuse a kept-alive
+ * HTTP/1.1 connection or a multiplexed HTTP/2 connection instead of opening a connection per request.
+ * Every request records its latency under the given phase name, and 429 replies are remembered per
+ * host (see {@link #throttledMillis}) so that all callers back off together.
+ */
+public class TokenClient {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private static final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(TIMEOUT)
+            .build();
+
+    // Only used for its throttle bookkeeping: requests are never blocked, callers ask how long to wait.
+    private static final HostLimiter endpoints = new HostLimiter(Integer.MAX_VALUE);
+
+    /**
+     * A token endpoint reply: the HTTP status, the JSON body (an empty object if the body was not JSON)
+     * and the Retry-After delay in seconds, or -1 if none was sent.
+     */
+    static final class Reply {
+        final int status;
+        final JSONObject body;
+        final long retryAfterSeconds;
+
+        Reply(int status, JSONObject body, long retryAfterSeconds) {
+            this.status = status;
+            this.body = body;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        boolean isSuccess() {
+            return status == 200 && body.has("access_token");
+        }
+
+        String error() {
+            return body.optString("error", "http_" + status);
+        }
+
+        /**
+         * True for replies that are worth repeating later: throttling and server-side failures.
+         */
+        boolean isTransient() {
+            return status == 429 || status >= 500;
+        }
+
+        String describe() {
+            String description = body.optString("error_description", "");
+            return error() + (description.isEmpty() ? "" : ": " + description);
+        }
+    }
+
+    /**
+     * POSTs a form to the endpoint. The future fails only on transport errors; error replies complete it normally.
+     */
+    static CompletableFuture<Reply> post(String url, String form, String phase) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(form, StandardCharsets.UTF_8))
+                .build();
+        long start = System.nanoTime();
+        return http.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                .whenComplete((response, error) -> LatencyReport.record(phase, System.nanoTime() - start))
+                .thenApply(response -> {
+                    Reply reply = toReply(response);
+                    Throttle throttle = Throttle.of(reply);
+                    if (throttle != null) {
+                        endpoints.throttled(request.uri().getHost(), throttle);
+                    }
+                    return reply;
+                });
+    }
+
+    /**
+     * Returns how long requests to the endpoint's host should wait after it answered 429: its Retry-After,
+     * or a growing backoff when it gave none. Zero when the host is not throttling.
+     */
+    static long throttledMillis(String url) {
+        return endpoints.closedMillis(URI.create(url).getHost());
+    }
+
+    /**
+     * Requests a device code and user code for the configured client and scope.
+     */
+    static CompletableFuture<Reply> requestDeviceCode(Properties props) {
+        String form = form("client_id", props.getProperty("mail.oauth.client.id"), "scope", scope(props));
+        return post(props.getProperty("mail.oauth.devicecode.url"), form, "oauth.device_code_request");
+    }
+
+    /**
+     * Redeems a refresh token for a new access token.
+     */
+    static CompletableFuture<Reply> refresh(Properties props, String refreshToken) {
+        String form = form(
+                "grant_type", "refresh_token",
+                "client_id", props.getProperty("mail.oauth.client.id"),
+                "refresh_token", refreshToken,
+                "scope", scope(props),
+                "client_secret", props.getProperty("mail.oauth.client.secret"));
+        return post(props.getProperty("mail.oauth.token.url"), form, "oauth.refresh");
+    }
+
+    /**
+     * Waits for a reply, unwrapping the transport failure into an IOException.
+     */
+    static Reply await(CompletableFuture<Reply> reply) throws IOException {
+        try {
+            return reply.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Form-encodes name/value pairs, leaving out pairs whose value is null or blank.
+     */
+    static String form(String... namesAndValues) {
+        StringBuilder form = new StringBuilder(256);
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            String value = namesAndValues[i + 1];
+            if (value == null || value.trim().isEmpty()) continue;
+            if (form.length() > 0) form.append('&');
+            form.append(namesAndValues[i]).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+        }
+        return form.toString();
+    }
+
+    static String scope(Properties props) {
+        return props.getProperty("mail.oauth.scope", "").replace('+', ' ').replaceAll("\\s+", " ").trim();
+    }
+
+    private static Reply toReply(HttpResponse<String> response) {
+        JSONObject body;
+        try {
+            body = new JSONObject(response.body());
+        } catch (JSONException e) {
+            body = new JSONObject();
+        }
+        long retryAfter = response.headers().firstValue("Retry-After").map(value -> {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1L; // HTTP-date form; the caller falls back to its own delay
+            }
+        }).orElse(-1L);
+        return new Reply(response.statusCode(), body, retryAfter);
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bucket boundaries and the percentiles read from them.
+ */
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesHaveTheirOwnBucket() {
+        for (long micros = 0; micros < 16; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketOf(micros));
+            assertEquals(micros, LatencyHistogram.upperBoundMicros((int) micros));
+        }
+    }
+
+    @Test
+    void bucketsAreContiguousAndWithinAnEighth() {
+        long lower = 0;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long upper = LatencyHistogram.upperBoundMicros(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower), "lowest value of bucket " + bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(upper), "highest value of bucket " + bucket);
+            assertTrue(upper - lower <= Math.max(0, lower / 8), "width of bucket " + bucket);
+            lower = upper + 1;
+        }
+    }
+
+    @Test
+    void hugeValuesLandInTheLastBucket() {
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentileMicros(50));
+        assertEquals(0, histogram.meanMicros());
+    }
+
+    @Test
+    void percentilesOfAUniformSpread() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long ms = 1; ms <= 1000; ms++) {
+            histogram.recordNanos(ms * 1_000_000);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(1_000_000, histogram.maxMicros());
+        assertEquals(500_500, histogram.meanMicros(), 0.001);
+        assertWithinBucket(500_000, histogram.percentileMicros(50));
+        assertWithinBucket(990_000, histogram.percentileMicros(99));
+        assertEquals(1_000_000, histogram.percentileMicros(100));
+        assertWithinBucket(1000, histogram.percentileMicros(0));
+    }
+
+    @Test
+    void percentileIsCappedAtTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(1000);
+        assertEquals(1000, histogram.percentileMicros(99));
+    }
+
+    @Test
+    void mergeAddsCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.recordMicros(100);
+        b.recordMicros(100);
+        b.recordMicros(5000);
+        a.merge(b);
+        assertEquals(3, a.count());
+        assertEquals(5000, a.maxMicros());
+        assertEquals(5200, a.sumMicros());
+        assertEquals(2, a.bucketCount(LatencyHistogram.bucketOf(100)));
+    }
+
+    /** The reported value is the upper bound of the value's bucket, so at most an eighth above it. */
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 8, "expected about " + expected + ", got " + actual);
+    }
+}
@@ -0,0 +1,44 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Credentials must never reach a trace file; everything else must reach it unchanged.
+ */
+class ProtocolTraceTest {
+
+    private static final String SASL = "dXNlcj1tb25pdG9yQGNvbnRvc28uY29tAWF1dGg9QmVhcmVyIGV5SjBlWEFpT2lKS1YxUWlMQ0p1YjI1alpTSTZJbUZpWXlKOQEB";
+
+    @Test
+    void redactsXoauth2InitialResponse() {
+        assertEquals("AUTH XOAUTH2 <redacted>", ProtocolTrace.redact("AUTH XOAUTH2 " + SASL));
+        assertEquals("A1 AUTHENTICATE xoauth2 <redacted>", ProtocolTrace.redact("A1 AUTHENTICATE xoauth2 " + SASL));
+    }
+
+    @Test
+    void redactsBearerToken() {
+        assertEquals("user=monitor@contoso.com auth=Bearer <redacted>",
+                ProtocolTrace.redact("user=monitor@contoso.com auth=Bearer eyJ0eXAiOiJKV1QiLCJhbGciOiJSUzI1NiJ9.e30.c2ln"));
+    }
+
+    @Test
+    void redactsBareBase64Response() {
+        assertEquals("<redacted>", ProtocolTrace.redact(SASL));
+        assertEquals("<redacted>", ProtocolTrace.redact("  " + SASL + "  "));
+    }
+
+    @Test
+    void keepsOrdinaryLines() {
+        for (String line : new String[] {
+                "EHLO monitor.contoso.com",
+                "250-AUTH LOGIN XOAUTH2",
+                "334 ",
+                "A2 OK AUTHENTICATE completed.",
+                "AUTH XOAUTH2",
+                "MAIL FROM:<shared@contoso.com>",
+                "* 12 FETCH (UID 4711 RFC822.SIZE 2048)",
+        }) {
+            assertEquals(line, ProtocolTrace.redact(line));
+        }
+    }
+}
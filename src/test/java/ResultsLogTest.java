@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The variable-length integers every results log entry is made of.
+ */
+class ResultsLogTest {
+
+    private static final long[] VALUES = {
+            0, 1, 127, 128, 255, 300, 16_383, 16_384, 1L << 31, 1_700_000_000_000L,
+            Long.MAX_VALUE, -1, Long.MIN_VALUE,
+    };
+
+    @Test
+    void roundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(VALUES.length * 10);
+        for (long value : VALUES) {
+            ResultsLog.putVarLong(buffer, value);
+        }
+        buffer.flip();
+        for (long value : VALUES) {
+            assertEquals(value, ResultsLog.getVarLong(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void encodedLength() {
+        assertEquals(1, encode(0).remaining());
+        assertEquals(1, encode(127).remaining());
+        assertEquals(2, encode(128).remaining());
+        assertEquals(2, encode(16_383).remaining());
+        assertEquals(3, encode(16_384).remaining());
+        assertEquals(9, encode(Long.MAX_VALUE).remaining());
+        assertEquals(10, encode(-1).remaining());
+    }
+
+    @Test
+    void tornValueThrows() {
+        ByteBuffer encoded = encode(1_700_000_000_000L);
+        encoded.limit(encoded.limit() - 1);
+        assertThrows(BufferUnderflowException.class, () -> ResultsLog.getVarLong(encoded));
+    }
+
+    @Test
+    void overlongValueThrows() {
+        ByteBuffer garbage = ByteBuffer.allocate(12);
+        while (garbage.hasRemaining()) garbage.put((byte) 0xFF);
+        garbage.flip();
+        assertThrows(BufferUnderflowException.class, () -> ResultsLog.getVarLong(garbage));
+    }
+
+    private static ByteBuffer encode(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        ResultsLog.putVarLong(buffer, value);
+        return buffer.flip();
+    }
+}
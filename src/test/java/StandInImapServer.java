@@ -0,0 +1,438 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * IMAPS stand-in: CAPABILITY, AUTHENTICATE XOAUTH2 (with or without SASL-IR), LIST, SELECT/EXAMINE of
+ * INBOX, FETCH and UID FETCH (UID, FLAGS, INTERNALDATE, RFC822.SIZE, ENVELOPE, BODYSTRUCTURE and
+ * BODY[...] sections with partial ranges), IDLE, NOOP, CLOSE and LOGOUT over a {@link StandInMailbox}.
+ * New deliveries are announced with EXISTS while idling and on NOOP. STORE and EXPUNGE are accepted
+ * but change nothing, since the synthetic mailbox is read-only.
+ * With an error rate configured, logins are refused with BYE and SELECTs with the throttling NO
+ * that Exchange Online sends.
+ */
+public class StandInImapServer {
+
+    private static final String CAPABILITIES = "IMAP4rev1 AUTH=XOAUTH2 SASL-IR UIDPLUS MOVE ID CHILDREN IDLE";
+
+    private final StandInServers.Faults faults;
+    private final StandInMailbox mailbox;
+    private final ServerSocket serverSocket;
+
+    StandInImapServer(StandInServers servers, StandInMailbox mailbox, int port) throws IOException {
+        this.faults = servers.imapFaults;
+        this.mailbox = mailbox;
+        SSLServerSocket ssl = (SSLServerSocket) servers.sslContext.getServerSocketFactory().createServerSocket();
+        ssl.setReuseAddress(true);
+        ssl.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 512);
+        this.serverSocket = ssl;
+        servers.acceptLoop(serverSocket, this::handle, "standin-imap");
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        boolean authenticated = false;
+        boolean selected = false;
+        int known = 0;
+        Random random = faults.connection();
+
+        faults.delay();
+        if (faults.injectError(random)) {
+            reply(out, "* BYE Connection is closed. 14");
+            return;
+        }
+        reply(out, "* OK [CAPABILITY " + CAPABILITIES + "] The Microsoft Exchange IMAP4 service is ready (stand-in).");
+
+        String line;
+        while ((line = StandInServers.readLine(in)) != null) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 2) {
+                reply(out, "* BAD Command Error. 10");
+                continue;
+            }
+            String tag = parts[0];
+            String command = parts[1].toUpperCase(Locale.ROOT);
+            String args = parts.length > 2 ? parts[2] : "";
+            faults.delay();
+
+            switch (command) {
+                case "CAPABILITY":
+                    out.write(("* CAPABILITY " + CAPABILITIES + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    reply(out, tag + " OK CAPABILITY completed.");
+                    break;
+                case "ID":
+                    out.write("* ID NIL\r\n".getBytes(StandardCharsets.US_ASCII));
+                    reply(out, tag + " OK ID completed.");
+                    break;
+                case "AUTHENTICATE":
+                    authenticated = authenticate(tag, args, in, out);
+                    break;
+                case "LOGIN":
+                    reply(out, tag + " NO LOGIN failed.");
+                    break;
+                case "NOOP":
+                    if (selected) known = exists(out, known);
+                    reply(out, tag + " OK NOOP completed.");
+                    break;
+                case "IDLE":
+                    if (!requireSelected(tag, selected, out)) break;
+                    known = idle(tag, in, out, known);
+                    break;
+                case "LOGOUT":
+                    out.write("* BYE Microsoft Exchange Server IMAP4 server signing off.\r\n".getBytes(StandardCharsets.US_ASCII));
+                    reply(out, tag + " OK LOGOUT completed.");
+                    return;
+                case "LIST":
+                case "LSUB":
+                    if (!requireAuth(tag, authenticated, out)) break;
+                    out.write(("* " + command + " (\\HasNoChildren) \"/\" INBOX\r\n").getBytes(StandardCharsets.US_ASCII));
+                    reply(out, tag + " OK " + command + " completed.");
+                    break;
+                case "SELECT":
+                case "EXAMINE":
+                    if (!requireAuth(tag, authenticated, out)) break;
+                    known = select(tag, command, args, out, random);
+                    selected = known >= 0;
+                    break;
+                case "CLOSE":
+                case "UNSELECT":
+                    selected = false;
+                    reply(out, tag + " OK " + command + " completed.");
+                    break;
+                case "FETCH":
+                    if (!requireSelected(tag, selected, out)) break;
+                    fetch(tag, args, false, out);
+                    break;
+                case "STORE":
+                case "EXPUNGE":
+                    if (!requireSelected(tag, selected, out)) break;
+                    reply(out, tag + " OK " + command + " completed.");
+                    break;
+                case "UID":
+                    if (!requireSelected(tag, selected, out)) break;
+                    String[] uidParts = args.split(" ", 2);
+                    if (uidParts.length == 2 && "FETCH".equalsIgnoreCase(uidParts[0])) {
+                        fetch(tag, uidParts[1], true, out);
+                    } else if (uidParts.length == 2 && "SEARCH".equalsIgnoreCase(uidParts[0])) {
+                        reply(out, "* SEARCH\r\n" + tag + " OK SEARCH completed.");
+                    } else if (uidParts.length == 2 && ("STORE".equalsIgnoreCase(uidParts[0]) || "EXPUNGE".equalsIgnoreCase(uidParts[0]))) {
+                        reply(out, tag + " OK " + uidParts[0].toUpperCase(Locale.ROOT) + " completed.");
+                    } else {
+                        reply(out, tag + " BAD Command Argument Error. 11");
+                    }
+                    break;
+                case "SEARCH":
+                    if (!requireSelected(tag, selected, out)) break;
+                    reply(out, "* SEARCH\r\n" + tag + " OK SEARCH completed.");
+                    break;
+                default:
+                    reply(out, tag + " BAD Command Error. 10");
+            }
+        }
+    }
+
+    private boolean authenticate(String tag, String args, InputStream in, OutputStream out) throws IOException {
+        String[] parts = args.split(" ");
+        if (!"XOAUTH2".equalsIgnoreCase(parts[0])) {
+            reply(out, tag + " NO AUTHENTICATE failed.");
+            return false;
+        }
+        String response = parts.length > 1 ? parts[1] : null;
+        if (response == null) {
+            reply(out, "+ ");
+            response = StandInServers.readLine(in);
+            faults.delay();
+        }
+        if (response != null && StandInServers.validXoauth2(response)) {
+            reply(out, tag + " OK AUTHENTICATE completed.");
+            return true;
+        }
+        reply(out, tag + " NO AUTHENTICATE failed.");
+        return false;
+    }
+
+    /**
+     * Selects INBOX and returns its message count, or -1 if the SELECT was refused.
+     */
+    private int select(String tag, String command, String args, OutputStream out, Random random) throws IOException {
+        String name = args.trim();
+        if (name.startsWith("\"") && name.endsWith("\"") && name.length() >= 2) {
+            name = name.substring(1, name.length() - 1);
+        }
+        if (!"INBOX".equalsIgnoreCase(name)) {
+            reply(out, tag + " NO [NONEXISTENT] The requested item could not be found.");
+            return -1;
+        }
+        if (faults.injectError(random)) {
+            reply(out, tag + " NO Request is throttled. Suggested Backoff Time: 1000 milliseconds");
+            return -1;
+        }
+        int count = mailbox.count();
+        StringBuilder response = new StringBuilder(256);
+        response.append("* ").append(count).append(" EXISTS\r\n");
+        response.append("* 0 RECENT\r\n");
+        response.append("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft $MDNSent)\r\n");
+        response.append("* OK [PERMANENTFLAGS ()] Permanent flags\r\n");
+        response.append("* OK [UIDVALIDITY ").append(mailbox.uidValidity).append("] UIDVALIDITY value\r\n");
+        response.append("* OK [UIDNEXT ").append(count + 1).append("] The next unique identifier value\r\n");
+        response.append(tag).append(" OK [").append("EXAMINE".equals(command) ? "READ-ONLY" : "READ-WRITE")
+                .append("] ").append(command).append(" completed.");
+        reply(out, response.toString());
+        return count;
+    }
+
+    /**
+     * Answers IDLE: every delivery is pushed as "* n EXISTS" from the delivering thread until the client
+     * sends DONE. Returns the message count the client now knows of.
+     */
+    private int idle(String tag, InputStream in, OutputStream out, int known) throws IOException {
+        // The count last reported to the client, or -1 once IDLE has ended. Guarded by 'out'.
+        int[] reported = {known};
+        Runnable listener = () -> {
+            synchronized (out) {
+                if (reported[0] < 0) return;
+                try {
+                    reported[0] = exists(out, reported[0]);
+                } catch (IOException e) {
+                    // Client went away; the reading thread notices and ends the session.
+                }
+            }
+        };
+        synchronized (out) {
+            reply(out, "+ IDLE accepted, awaiting DONE command.");
+            mailbox.addListener(listener);
+            reported[0] = exists(out, reported[0]);
+        }
+        String done;
+        try {
+            done = StandInServers.readLine(in);
+        } finally {
+            mailbox.removeListener(listener);
+            synchronized (out) {
+                known = reported[0];
+                reported[0] = -1;
+            }
+        }
+        if (done != null) {
+            reply(out, tag + ("DONE".equalsIgnoreCase(done.trim()) ? " OK IDLE completed." : " BAD Command Argument Error. 11"));
+        }
+        return known;
+    }
+
+    /**
+     * Sends "* n EXISTS" if messages were delivered since the client last heard the count, and returns the count.
+     */
+    private int exists(OutputStream out, int known) throws IOException {
+        int count = mailbox.count();
+        if (count != known) reply(out, "* " + count + " EXISTS");
+        return count;
+    }
+
+    /**
+     * Answers FETCH / UID FETCH. UIDs equal sequence numbers in the synthetic mailbox.
+     */
+    private void fetch(String tag, String args, boolean byUid, OutputStream out) throws IOException {
+        int space = args.indexOf(' ');
+        if (space < 0) {
+            reply(out, tag + " BAD Command Argument Error. 11");
+            return;
+        }
+        int count = mailbox.count();
+        List<String> items = parseItems(args.substring(space + 1).trim());
+        if (byUid && !items.contains("UID")) {
+            items.add(0, "UID");
+        }
+        for (int[] range : parseSequenceSet(args.substring(0, space), count)) {
+            for (int n = Math.max(1, range[0]); n <= Math.min(count, range[1]); n++) {
+                writeFetchResponse(n, items, out);
+            }
+        }
+        reply(out, tag + " OK FETCH completed.");
+    }
+
+    private void writeFetchResponse(int n, List<String> items, OutputStream out) throws IOException {
+        out.write(("* " + n + " FETCH (").getBytes(StandardCharsets.US_ASCII));
+        boolean first = true;
+        for (String item : items) {
+            if (!first) out.write(' ');
+            first = false;
+            String upper = item.toUpperCase(Locale.ROOT);
+            if (upper.equals("UID")) {
+                ascii(out, "UID " + n);
+            } else if (upper.equals("FLAGS")) {
+                ascii(out, "FLAGS ()");
+            } else if (upper.equals("INTERNALDATE")) {
+                ascii(out, "INTERNALDATE \"" + mailbox.internalDate(n) + "\"");
+            } else if (upper.equals("RFC822.SIZE")) {
+                ascii(out, "RFC822.SIZE " + mailbox.size(n));
+            } else if (upper.equals("ENVELOPE")) {
+                ascii(out, "ENVELOPE " + mailbox.envelope(n));
+            } else if (upper.equals("BODYSTRUCTURE") || upper.equals("BODY")) {
+                ascii(out, upper + " (\"TEXT\" \"PLAIN\" (\"CHARSET\" \"us-ascii\") NIL NIL \"7BIT\" "
+                        + mailbox.body(n).length + " " + mailbox.bodyLines(n) + " NIL NIL NIL NIL)");
+            } else if (upper.equals("RFC822") || upper.equals("RFC822.HEADER") || upper.equals("RFC822.TEXT")) {
+                String section = upper.equals("RFC822") ? "" : upper.substring("RFC822.".length());
+                byte[] data = section(n, section);
+                literal(out, upper, data, 0, data.length);
+            } else if (upper.startsWith("BODY[") || upper.startsWith("BODY.PEEK[")) {
+                writeBodySection(n, item, out);
+            }
+        }
+        out.write(")\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void writeBodySection(int n, String item, OutputStream out) throws IOException {
+        int open = item.indexOf('[');
+        int close = item.lastIndexOf(']');
+        String section = item.substring(open + 1, close);
+        byte[] data = section(n, section.toUpperCase(Locale.ROOT));
+        int offset = 0;
+        int length = data.length;
+        String name = "BODY[" + section + "]";
+        int partial = item.indexOf('<', close);
+        if (partial >= 0) {
+            String[] range = item.substring(partial + 1, item.indexOf('>', partial)).split("\\.");
+            offset = Math.min(Integer.parseInt(range[0]), data.length);
+            length = range.length > 1 ? Math.min(Integer.parseInt(range[1]), data.length - offset) : data.length - offset;
+            name += "<" + offset + ">";
+        }
+        literal(out, name, data, offset, length);
+    }
+
+    private byte[] section(int n, String section) {
+        byte[] header = mailbox.header(n);
+        byte[] body = mailbox.body(n);
+        if (section.isEmpty()) {
+            byte[] all = Arrays.copyOf(header, header.length + body.length);
+            System.arraycopy(body, 0, all, header.length, body.length);
+            return all;
+        }
+        if (section.equals("TEXT")) return body;
+        if (section.equals("HEADER")) return header;
+        if (section.startsWith("HEADER.FIELDS")) {
+            boolean not = section.startsWith("HEADER.FIELDS.NOT");
+            String[] names = section.substring(section.indexOf('(') + 1, section.lastIndexOf(')')).trim().split("\\s+");
+            StringBuilder selected = new StringBuilder();
+            for (String headerLine : new String(header, StandardCharsets.US_ASCII).split("\r\n")) {
+                if (headerLine.isEmpty()) continue;
+                String field = headerLine.substring(0, Math.max(0, headerLine.indexOf(':'))).toUpperCase(Locale.ROOT);
+                if (Arrays.asList(names).contains(field) != not) {
+                    selected.append(headerLine).append("\r\n");
+                }
+            }
+            return selected.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        return new byte[0];
+    }
+
+    private static void literal(OutputStream out, String name, byte[] data, int offset, int length) throws IOException {
+        ascii(out, name + " {" + length + "}\r\n");
+        out.write(data, offset, length);
+    }
+
+    private static void ascii(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Splits a FETCH item list such as "(UID BODY.PEEK[HEADER.FIELDS (A B)]<0.100>)" into items,
+     * expanding the ALL, FAST and FULL macros.
+     */
+    static List<String> parseItems(String spec) {
+        String s = spec.startsWith("(") && spec.endsWith(")") ? spec.substring(1, spec.length() - 1) : spec;
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        StringBuilder current = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            if (c == '[' || c == '(') depth++;
+            if (c == ']' || c == ')') depth--;
+            if (c == ' ' && depth == 0) {
+                if (current.length() > 0) items.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        if (current.length() > 0) items.add(current.toString());
+
+        List<String> expanded = new ArrayList<>();
+        for (String item : items) {
+            switch (item.toUpperCase(Locale.ROOT)) {
+                case "ALL":
+                    expanded.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE"));
+                    break;
+                case "FAST":
+                    expanded.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE"));
+                    break;
+                case "FULL":
+                    expanded.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE", "BODY"));
+                    break;
+                default:
+                    expanded.add(item);
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Parses a sequence set such as "1:5,7,9:*" into inclusive ranges, with '*' meaning the last message.
+     */
+    static List<int[]> parseSequenceSet(String set, int last) {
+        List<int[]> ranges = new ArrayList<>();
+        for (String part : set.split(",")) {
+            String[] bounds = part.split(":");
+            int low = bound(bounds[0], last);
+            int high = bounds.length > 1 ? bound(bounds[1], last) : low;
+            ranges.add(new int[]{Math.min(low, high), Math.max(low, high)});
+        }
+        return ranges;
+    }
+
+    private static int bound(String value, int last) {
+        if (value.equals("*")) return last;
+        long parsed = Long.parseLong(value);
+        return (int) Math.min(parsed, Integer.MAX_VALUE);
+    }
+
+    private static boolean requireAuth(String tag, boolean authenticated, OutputStream out) throws IOException {
+        if (!authenticated) reply(out, tag + " BAD User is not authenticated.");
+        return authenticated;
+    }
+
+    private static boolean requireSelected(String tag, boolean selected, OutputStream out) throws IOException {
+        if (!selected) reply(out, tag + " BAD Command received in Invalid state.");
+        return selected;
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        StandInServers.writeLine(out, reply);
+        out.flush();
+    }
+}
@@ -0,0 +1,150 @@
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The synthetic mailbox served by the IMAP stand-in. Messages are numbered 1..count, their UID equals
+ * their sequence number, and their content is generated on demand, so even a mailbox with millions of
+ * messages costs no memory.
+ *
+ * Messages accepted by the SMTP stand-in are appended after the synthetic ones. Only their header is
+ * kept (with a one-line placeholder body), and at most 'standin.delivery.max' of them, so load runs do not
+ * fill the heap. Listeners are told about every delivery, which is how IDLE sessions learn of new mail.
+ */
+public class StandInMailbox {
+
+    private static final String DATE = "Mon, 6 Jan 2025 09:00:00 +0000";
+    private static final String INTERNAL_DATE = "06-Jan-2025 09:00:00 +0000";
+
+    private static final DateTimeFormatter INTERNAL_DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss Z", Locale.ROOT);
+    private static final byte[] DELIVERED_BODY = "The stand-in keeps only the header of delivered messages.\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** Changes with every start, as the delivered messages (and so their UIDs) are not kept. */
+    final long uidValidity = System.currentTimeMillis() / 1000;
+
+    private final int count;
+    private final byte[] body;
+    private final int maxDelivered;
+    private final List<Delivered> delivered = new ArrayList<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private static final class Delivered {
+        final byte[] header;
+        final String internalDate;
+
+        Delivered(byte[] header, String internalDate) {
+            this.header = header;
+            this.internalDate = internalDate;
+        }
+    }
+
+    public StandInMailbox(int count, int messageSize, int maxDelivered) {
+        this.count = count;
+        this.maxDelivered = maxDelivered;
+        StringBuilder text = new StringBuilder(messageSize + 80);
+        while (text.length() < messageSize) {
+            text.append("Synthetic stand-in message body used for reproducible IMAP benchmarks.\r\n");
+        }
+        text.setLength(Math.max(0, messageSize - 2));
+        text.append("\r\n");
+        this.body = text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public synchronized int count() {
+        return count + delivered.size();
+    }
+
+    /**
+     * Appends a delivered message, given its header block, and tells the listeners.
+     * Returns false (and drops the message) once 'standin.delivery.max' messages were delivered.
+     */
+    public boolean deliver(byte[] header) {
+        synchronized (this) {
+            if (delivered.size() >= maxDelivered) return false;
+            delivered.add(new Delivered(header, ZonedDateTime.now().format(INTERNAL_DATE_FORMAT)));
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /** Registers a listener run (on the delivering thread) after every delivery. */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized Delivered delivered(int n) {
+        return n > count && n - count <= delivered.size() ? delivered.get(n - count - 1) : null;
+    }
+
+    public String internalDate(int n) {
+        Delivered message = delivered(n);
+        return message != null ? message.internalDate : INTERNAL_DATE;
+    }
+
+    public byte[] header(int n) {
+        Delivered message = delivered(n);
+        if (message != null) return message.header;
+        return ("From: sender" + (n % 50) + "@standin.test\r\n"
+                + "To: shared@standin.test\r\n"
+                + "Subject: Synthetic message " + n + "\r\n"
+                + "Date: " + DATE + "\r\n"
+                + "Message-ID: <" + n + "@standin.test>\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: text/plain; charset=us-ascii\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public byte[] body(int n) {
+        if (n > count) return DELIVERED_BODY;
+        return body;
+    }
+
+    public int size(int n) {
+        return header(n).length + body(n).length;
+    }
+
+    public int bodyLines(int n) {
+        int lines = 0;
+        for (byte b : body(n)) {
+            if (b == '\n') lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the IMAP ENVELOPE structure for the message.
+     */
+    public String envelope(int n) {
+        Delivered message = delivered(n);
+        if (message != null) {
+            // Only the subject and Message-ID of a delivered message are reported; the addresses are left NIL.
+            return "(NIL " + quoted(field(message.header, "Subject")) + " NIL NIL NIL NIL NIL NIL NIL "
+                    + quoted(field(message.header, "Message-ID")) + ")";
+        }
+        String from = "((NIL NIL \"sender" + (n % 50) + "\" \"standin.test\"))";
+        return "(\"" + DATE + "\" \"Synthetic message " + n + "\" " + from + " " + from + " " + from
+                + " ((NIL NIL \"shared\" \"standin.test\")) NIL NIL NIL \"<" + n + "@standin.test>\")";
+    }
+
+    private static String field(byte[] header, String name) {
+        String prefix = name.toLowerCase(Locale.ROOT) + ":";
+        for (String line : new String(header, StandardCharsets.US_ASCII).split("\r\n")) {
+            if (line.toLowerCase(Locale.ROOT).startsWith(prefix)) return line.substring(prefix.length()).trim();
+        }
+        return null;
+    }
+
+    private static String quoted(String value) {
+        return value == null ? "NIL" : "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * In-process stand-ins for the Microsoft endpoints the tester talks to: an SMTP server with STARTTLS and
+ * AUTH XOAUTH2, an IMAPS server with SASL XOAUTH2, SELECT/EXAMINE and FETCH over a synthetic mailbox,
+ * and the OAuth token and device code endpoints. They make every mode runnable offline (CI, air-gapped
+ * machines) with deterministic timing.
+ *
+ * Settings are read from the 'standin.*' keys of mail.properties:
+ * ports, a fixed latency added before every reply and an error rate for injected throttling replies
+ * (each settable per stand-in), the number of 'authorization_pending' answers per device code, the
+ * synthetic mailbox size, and the delay before a sent message shows up in that mailbox.
+ * The servers use a bundled self-signed certificate for 'localhost', so clients need
+ * mail.smtp.ssl.trust / mail.imap.ssl.trust set to localhost.
+ */
+public class StandInServers implements AutoCloseable {
+
+    static final String TOKEN_PREFIX = "standin-";
+
+    final Faults smtpFaults;
+    final Faults imapFaults;
+    final Faults tokenFaults;
+    final SSLContext sslContext;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "standin-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private StandInSmtpServer smtp;
+    private StandInImapServer imap;
+    private StandInTokenServer token;
+
+    private StandInServers(Properties props) throws IOException, GeneralSecurityException {
+        this.smtpFaults = new Faults(props, "smtp");
+        this.imapFaults = new Faults(props, "imap");
+        this.tokenFaults = new Faults(props, "token");
+        this.sslContext = loadSslContext();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties props = new Properties();
+        try (InputStream input = new FileInputStream("mail.properties")) {
+            props.load(input);
+        } catch (IOException e) {
+            System.out.println("No readable mail.properties; using stand-in defaults.");
+        }
+        StandInServers servers = start(props);
+        Runtime.getRuntime().addShutdownHook(new Thread(servers::close));
+        System.out.println("Stand-in servers running. Point mail.properties at them with:\n");
+        System.out.println(servers.clientProperties());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Starts all three stand-ins and returns once they accept connections.
+     */
+    public static StandInServers start(Properties props) throws IOException, GeneralSecurityException {
+        StandInServers servers = new StandInServers(props);
+        StandInMailbox mailbox = new StandInMailbox(
+                Integer.parseInt(props.getProperty("standin.imap.messages", "1000").trim()),
+                Integer.parseInt(props.getProperty("standin.imap.message.size", "4096").trim()),
+                Integer.parseInt(props.getProperty("standin.delivery.max", "10000").trim()));
+        servers.smtp = new StandInSmtpServer(servers, mailbox, Integer.parseInt(props.getProperty("standin.smtp.port", "2587").trim()),
+                Long.parseLong(props.getProperty("standin.delivery.delay.ms", "0").trim()));
+        servers.imap = new StandInImapServer(servers, mailbox, Integer.parseInt(props.getProperty("standin.imap.port", "2993").trim()));
+        servers.token = new StandInTokenServer(servers, Integer.parseInt(props.getProperty("standin.http.port", "2080").trim()),
+                Integer.parseInt(props.getProperty("standin.pending.polls", "2").trim()),
+                Integer.parseInt(props.getProperty("standin.device.interval.seconds", "1").trim()));
+        return servers;
+    }
+
+    /**
+     * Returns the mail.properties lines that point the tester at these stand-ins.
+     */
+    public String clientProperties() {
+        return "mail.smtp.host=localhost\n"
+                + "mail.smtp.port=" + smtp.port() + "\n"
+                + "mail.smtp.ssl.trust=localhost\n"
+                + "mail.imap.host=localhost\n"
+                + "mail.imap.port=" + imap.port() + "\n"
+                + "mail.imap.ssl.trust=localhost\n"
+                + "mail.oauth.auth.url=http://localhost:" + token.port() + "/authorize\n"
+                + "mail.oauth.token.url=http://localhost:" + token.port() + "/token\n"
+                + "mail.oauth.devicecode.url=http://localhost:" + token.port() + "/devicecode\n";
+    }
+
+    /**
+     * Adds the client settings that point at these stand-ins to the given configuration.
+     */
+    public void configureClient(Properties props) {
+        try {
+            props.load(new StringReader(clientProperties()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (smtp != null) smtp.close();
+        if (imap != null) imap.close();
+        if (token != null) token.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * Accepts connections on the server socket until it is closed, handling each on its own thread.
+     */
+    void acceptLoop(ServerSocket server, ConnectionHandler handler, String name) {
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    connections.execute(() -> {
+                        try (Socket s = socket) {
+                            handler.handle(s);
+                        } catch (IOException e) {
+                            // Client went away; nothing to clean up beyond the socket.
+                        }
+                    });
+                } catch (IOException e) {
+                    // Server socket closed.
+                }
+            }
+        }, name);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    interface ConnectionHandler {
+        void handle(Socket socket) throws IOException;
+    }
+
+    /**
+     * The latency and error rate of one stand-in: 'standin.&lt;part&gt;.latency.ms' and
+     * 'standin.&lt;part&gt;.error.rate', falling back to 'standin.latency.ms' and 'standin.error.rate'.
+     *
+     * Every connection (every request, for the token endpoint) draws its failures from a random sequence of
+     * its own, seeded from 'standin.seed', the part and the connection's number, so for a given seed the
+     * n-th connection fails at the same points however the connections' threads interleave.
+     */
+    static final class Faults {
+        final int latencyMillis;
+        final double errorRate;
+        private final long seed;
+        private final AtomicLong connections = new AtomicLong();
+
+        Faults(Properties props, String part) {
+            this.latencyMillis = Integer.parseInt(props.getProperty("standin." + part + ".latency.ms",
+                    props.getProperty("standin.latency.ms", "0")).trim());
+            this.errorRate = Double.parseDouble(props.getProperty("standin." + part + ".error.rate",
+                    props.getProperty("standin.error.rate", "0")).trim());
+            this.seed = Long.parseLong(props.getProperty("standin.seed", "42").trim()) * 31 + part.hashCode();
+        }
+
+        /**
+         * Returns the random sequence of the next connection.
+         */
+        Random connection() {
+            return new Random(seed + 0x9E3779B97F4A7C15L * connections.incrementAndGet());
+        }
+
+        /**
+         * Sleeps for the configured per-reply latency.
+         */
+        void delay() {
+            if (latencyMillis <= 0) return;
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Decides whether to inject a failure at this point of a connection, according to the error rate.
+         */
+        boolean injectError(Random connection) {
+            return errorRate > 0 && connection.nextDouble() < errorRate;
+        }
+    }
+
+    /**
+     * Checks an XOAUTH2 initial response ("user=...^Aauth=Bearer ...^A^A") for a token issued by the stand-in.
+     */
+    static boolean validXoauth2(String base64) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(base64.trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        int bearer = decoded.indexOf("auth=Bearer ");
+        return bearer >= 0 && decoded.startsWith(TOKEN_PREFIX, bearer + "auth=Bearer ".length());
+    }
+
+    /**
+     * Reads one CRLF- or LF-terminated line, without the terminator. Returns null at end of stream.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString(StandardCharsets.ISO_8859_1) : null;
+    }
+
+    static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static SSLContext loadSslContext() throws IOException, GeneralSecurityException {
+        char[] password = "changeit".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = StandInServers.class.getResourceAsStream("/standin-keystore.p12")) {
+            if (in == null) {
+                throw new IOException("standin-keystore.p12 is missing from the class path");
+            }
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+}
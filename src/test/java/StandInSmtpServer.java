@@ -0,0 +1,279 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * SMTP stand-in: EHLO, STARTTLS, AUTH XOAUTH2, MAIL/RCPT/DATA, BDAT (CHUNKING), RSET, NOOP and QUIT.
+ * Message data is read without being buffered; the header of every accepted message is delivered to the
+ * {@link StandInMailbox}, after 'standin.delivery.delay.ms' to imitate the transport pipeline. With an error
+ * rate configured, connections and transactions are refused with the '421 4.7.x' throttling replies
+ * Exchange Online sends under load.
+ */
+public class StandInSmtpServer {
+
+    private final StandInServers servers;
+    private final StandInServers.Faults faults;
+    private final StandInMailbox mailbox;
+    private final long deliveryDelayMillis;
+    private final ServerSocket serverSocket;
+    private final AtomicLong queued = new AtomicLong();
+    private final ScheduledExecutorService deliveries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "standin-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    StandInSmtpServer(StandInServers servers, StandInMailbox mailbox, int port, long deliveryDelayMillis) throws IOException {
+        this.servers = servers;
+        this.faults = servers.smtpFaults;
+        this.mailbox = mailbox;
+        this.deliveryDelayMillis = deliveryDelayMillis;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 512);
+        servers.acceptLoop(serverSocket, this::handle, "standin-smtp");
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    void close() {
+        deliveries.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        boolean tls = false;
+        boolean authenticated = false;
+        HeaderCapture message = null;
+        Random random = faults.connection();
+
+        faults.delay();
+        if (faults.injectError(random)) {
+            reply(out, "421 4.7.0 Temporary server error. Please try again later. PRX4");
+            return;
+        }
+        reply(out, "220 standin.test Microsoft ESMTP MAIL Service ready (stand-in)");
+
+        String line;
+        while ((line = StandInServers.readLine(in)) != null) {
+            String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase(Locale.ROOT) : line.toUpperCase(Locale.ROOT);
+            faults.delay();
+            switch (command) {
+                case "EHLO":
+                    StringBuilder ehlo = new StringBuilder("250-standin.test Hello\r\n");
+                    ehlo.append("250-SIZE 157286400\r\n");
+                    ehlo.append("250-PIPELINING\r\n");
+                    ehlo.append("250-8BITMIME\r\n");
+                    ehlo.append("250-CHUNKING\r\n");
+                    ehlo.append(tls ? "250-AUTH XOAUTH2\r\n" : "250-STARTTLS\r\n");
+                    ehlo.append("250 ENHANCEDSTATUSCODES");
+                    reply(out, ehlo.toString());
+                    break;
+                case "HELO":
+                    reply(out, "250 standin.test Hello");
+                    break;
+                case "STAR":
+                    if (tls) {
+                        reply(out, "503 5.5.1 TLS already active");
+                        break;
+                    }
+                    reply(out, "220 2.0.0 SMTP server ready");
+                    SSLSocket ssl = (SSLSocket) servers.sslContext.getSocketFactory()
+                            .createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+                    ssl.setUseClientMode(false);
+                    ssl.startHandshake();
+                    in = new BufferedInputStream(ssl.getInputStream());
+                    out = new BufferedOutputStream(ssl.getOutputStream());
+                    tls = true;
+                    break;
+                case "AUTH":
+                    authenticated = authenticate(line, in, out, tls);
+                    break;
+                case "MAIL":
+                    if (!authenticated) {
+                        reply(out, "530 5.7.57 Client not authenticated to send mail");
+                    } else if (faults.injectError(random)) {
+                        reply(out, "421 4.7.26 Service not available, message submission rate limit exceeded");
+                        return;
+                    } else {
+                        reply(out, "250 2.1.0 Sender OK");
+                    }
+                    break;
+                case "RCPT":
+                    reply(out, authenticated ? "250 2.1.5 Recipient OK" : "503 5.5.1 Need MAIL command");
+                    break;
+                case "DATA":
+                    reply(out, "354 Start mail input; end with <CRLF>.<CRLF>");
+                    message = new HeaderCapture();
+                    readData(in, message);
+                    faults.delay();
+                    deliver(message);
+                    message = null;
+                    reply(out, "250 2.0.0 OK <" + queued.incrementAndGet() + "@standin.test> [Hostname=standin.test]");
+                    break;
+                case "BDAT":
+                    // BDAT <size> [LAST]: exactly <size> octets of message data follow the command line.
+                    String[] chunk = line.split(" ");
+                    if (message == null) message = new HeaderCapture();
+                    skip(in, Long.parseLong(chunk[1]), message);
+                    faults.delay();
+                    if (!authenticated) {
+                        message = null;
+                        reply(out, "503 5.5.1 Need MAIL command");
+                    } else if (chunk.length > 2 && "LAST".equalsIgnoreCase(chunk[2])) {
+                        deliver(message);
+                        message = null;
+                        reply(out, "250 2.0.0 OK <" + queued.incrementAndGet() + "@standin.test> [Hostname=standin.test]");
+                    } else {
+                        reply(out, "250 2.0.0 " + chunk[1] + " octets received");
+                    }
+                    break;
+                case "RSET":
+                    message = null;
+                    reply(out, "250 2.0.0 Resetting");
+                    break;
+                case "NOOP":
+                    reply(out, "250 2.0.0 OK");
+                    break;
+                case "QUIT":
+                    reply(out, "221 2.0.0 Service closing transmission channel");
+                    return;
+                default:
+                    reply(out, "500 5.3.3 Unrecognized command");
+            }
+        }
+    }
+
+    private boolean authenticate(String line, InputStream in, OutputStream out, boolean tls) throws IOException {
+        String[] parts = line.split(" ");
+        if (!tls) {
+            reply(out, "530 5.7.0 Must issue a STARTTLS command first");
+            return false;
+        }
+        if (parts.length < 2 || !"XOAUTH2".equalsIgnoreCase(parts[1])) {
+            reply(out, "504 5.7.4 Unrecognized authentication type");
+            return false;
+        }
+        String response = parts.length > 2 ? parts[2] : null;
+        if (response == null) {
+            reply(out, "334 ");
+            response = StandInServers.readLine(in);
+            faults.delay();
+        }
+        if (response != null && StandInServers.validXoauth2(response)) {
+            reply(out, "235 2.7.0 Authentication successful");
+            return true;
+        }
+        reply(out, "535 5.7.3 Authentication unsuccessful");
+        return false;
+    }
+
+    private void deliver(HeaderCapture message) {
+        byte[] header = message.header();
+        if (deliveryDelayMillis > 0) {
+            deliveries.schedule(() -> mailbox.deliver(header), deliveryDelayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            mailbox.deliver(header);
+        }
+    }
+
+    /**
+     * Keeps the header block of a message (up to the first empty line, at most 64 KB) and ignores the rest.
+     */
+    private static final class HeaderCapture {
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+        private int tail;
+        private boolean complete;
+
+        void write(int b) {
+            if (complete) return;
+            header.write(b);
+            tail = tail << 8 | (b & 0xFF);
+            complete = tail == 0x0D0A0D0A || header.size() >= 64 * 1024;
+        }
+
+        void write(byte[] buffer, int offset, int length) {
+            for (int i = offset; i < offset + length && !complete; i++) {
+                write(buffer[i]);
+            }
+        }
+
+        byte[] header() {
+            if (!complete) {
+                header.write('\r');
+                header.write('\n');
+            }
+            return header.toByteArray();
+        }
+    }
+
+    /**
+     * Consumes message data up to the terminating CRLF "." CRLF without buffering it, passing it to the capture.
+     */
+    private static void readData(InputStream in, HeaderCapture message) throws IOException {
+        // 0: inside a line, 1: saw CR, 2: at the start of a line, 3: line started with '.', 4: '.' then CR
+        int state = 2;
+        int b;
+        while ((b = in.read()) != -1) {
+            message.write(b);
+            switch (state) {
+                case 1:
+                    state = b == '\n' ? 2 : (b == '\r' ? 1 : 0);
+                    break;
+                case 2:
+                    state = b == '.' ? 3 : (b == '\r' ? 1 : 0);
+                    break;
+                case 3:
+                    state = b == '\r' ? 4 : 0;
+                    break;
+                case 4:
+                    if (b == '\n') return;
+                    state = b == '\r' ? 1 : 0;
+                    break;
+                default:
+                    state = b == '\r' ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Consumes a BDAT chunk without buffering it, passing it to the capture.
+     */
+    private static void skip(InputStream in, long length, HeaderCapture message) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (length > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) throw new IOException("Connection closed inside a BDAT chunk");
+            message.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        StandInServers.writeLine(out, reply);
+        out.flush();
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * OAuth stand-in: the authorization endpoint (redirects straight back with a code), the device code
+ * endpoint, and the token endpoint for the authorization_code, device_code and refresh_token grants.
+ * Device codes answer 'authorization_pending' a configurable number of times before issuing a token, and
+ * 'slow_down' when polled more often than the interval they advertise.
+ * Issued access tokens start with {@link StandInServers#TOKEN_PREFIX}, which is what the SMTP and IMAP
+ * stand-ins accept. With an error rate configured, token requests are throttled with 429 and Retry-After.
+ */
+public class StandInTokenServer {
+
+    private static final int TOKEN_LIFETIME_SECONDS = 3600;
+
+    private final StandInServers.Faults faults;
+    private final HttpServer server;
+    private final int pendingPolls;
+    private final int intervalSeconds;
+    /** Per device code: { polls so far, time of the last poll in ms }. */
+    private final Map<String, long[]> deviceCodes = new ConcurrentHashMap<>();
+
+    StandInTokenServer(StandInServers servers, int port, int pendingPolls, int intervalSeconds) throws IOException {
+        this.faults = servers.tokenFaults;
+        this.pendingPolls = pendingPolls;
+        this.intervalSeconds = intervalSeconds;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        server.createContext("/authorize", this::authorize);
+        server.createContext("/devicecode", this::deviceCode);
+        server.createContext("/token", this::token);
+        server.setExecutor(null);
+        server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    void close() {
+        server.stop(0);
+    }
+
+    private void authorize(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+        String redirectUri = query.get("redirect_uri");
+        if (redirectUri == null) {
+            send(exchange, 400, error("invalid_request", "redirect_uri is required"));
+            return;
+        }
+        exchange.getResponseHeaders().set("Location", redirectUri + "?code=standin-code-" + UUID.randomUUID());
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    private void deviceCode(HttpExchange exchange) throws IOException {
+        faults.delay();
+        String code = "standin-device-" + UUID.randomUUID();
+        deviceCodes.put(code, new long[]{0, System.currentTimeMillis()});
+        JSONObject response = new JSONObject();
+        response.put("device_code", code);
+        response.put("user_code", "STANDIN" + (deviceCodes.size() % 100));
+        response.put("verification_uri", "http://localhost:" + port() + "/devicelogin");
+        response.put("expires_in", 900);
+        response.put("interval", intervalSeconds);
+        response.put("message", "Stand-in device code; it is approved automatically after " + pendingPolls + " polls.");
+        send(exchange, 200, response);
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        faults.delay();
+        Map<String, String> form = parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        if (faults.injectError(faults.connection())) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 429, error("temporarily_unavailable", "AADSTS50196: The server terminated an operation because it encountered a client request loop."));
+            return;
+        }
+        String grantType = form.getOrDefault("grant_type", "");
+        switch (grantType) {
+            case "authorization_code":
+                if (!form.getOrDefault("code", "").startsWith("standin-code-")) {
+                    send(exchange, 400, error("invalid_grant", "AADSTS70000: The provided authorization code is invalid."));
+                    return;
+                }
+                send(exchange, 200, issueToken(form.get("scope")));
+                return;
+            case "refresh_token":
+                if (!form.getOrDefault("refresh_token", "").startsWith("standin-refresh-")) {
+                    send(exchange, 400, error("invalid_grant", "AADSTS70000: The provided refresh token is invalid."));
+                    return;
+                }
+                send(exchange, 200, issueToken(form.get("scope")));
+                return;
+            case "urn:ietf:params:oauth:grant-type:device_code":
+                long[] state = deviceCodes.get(form.getOrDefault("device_code", ""));
+                if (state == null) {
+                    send(exchange, 400, error("expired_token", "AADSTS70020: The provided value for the input parameter 'device_code' is not valid."));
+                    return;
+                }
+                String pollError;
+                synchronized (state) {
+                    long now = System.currentTimeMillis();
+                    // Polling faster than the advertised interval (with some slack for timer jitter) earns slow_down.
+                    boolean tooSoon = now - state[1] < intervalSeconds * 1000L - 200;
+                    state[1] = now;
+                    pollError = tooSoon ? "slow_down" : (++state[0] <= pendingPolls ? "authorization_pending" : null);
+                }
+                if ("slow_down".equals(pollError)) {
+                    send(exchange, 400, error("slow_down", "AADSTS70016: OAuth 2.0 device flow error. Polling too frequently."));
+                } else if (pollError != null) {
+                    send(exchange, 400, error("authorization_pending", "AADSTS70016: OAuth 2.0 device flow error. Authorization is pending."));
+                } else {
+                    deviceCodes.remove(form.get("device_code"));
+                    send(exchange, 200, issueToken(form.get("scope")));
+                }
+                return;
+            default:
+                send(exchange, 400, error("unsupported_grant_type", "AADSTS70003: The app requested an unsupported grant type '" + grantType + "'."));
+        }
+    }
+
+    private static JSONObject issueToken(String scope) {
+        JSONObject response = new JSONObject();
+        response.put("token_type", "Bearer");
+        response.put("scope", scope == null ? "" : scope);
+        response.put("expires_in", TOKEN_LIFETIME_SECONDS);
+        response.put("access_token", StandInServers.TOKEN_PREFIX + UUID.randomUUID());
+        response.put("refresh_token", "standin-refresh-" + UUID.randomUUID());
+        return response;
+    }
+
+    private static JSONObject error(String code, String description) {
+        JSONObject response = new JSONObject();
+        response.put("error", code);
+        response.put("error_description", description);
+        return response;
+    }
+
+    private static void send(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseForm(String encoded) {
+        Map<String, String> values = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) return values;
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            values.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import jakarta.mail.Address;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.StoreClosedException;
+
+/**
+ * Which Exchange Online answers count as throttling, and which are ordinary failures.
+ */
+class ThrottleTest {
+
+    private static SMTPSendFailedException smtp(int code, String reply) {
+        return new SMTPSendFailedException("DATA", code, reply, null, new Address[0], new Address[0], new Address[0]);
+    }
+
+    @Test
+    void smtp421IsThrottled() {
+        assertEquals("smtp 421 4.7.26", Throttle.of(smtp(421, "421 4.7.26 Service busy, please try again later")).kind);
+        assertEquals("smtp 421", Throttle.of(smtp(421, "421 Service not available")).kind);
+    }
+
+    @Test
+    void smtpTransientPolicyRepliesAreThrottled() {
+        assertEquals("smtp 450 4.7.0", Throttle.of(smtp(450, "450 4.7.0 Too many connections")).kind);
+        assertEquals("smtp 452 4.7.1", Throttle.of(smtp(452, "452-4.7.1 Rate limit exceeded")).kind);
+    }
+
+    @Test
+    void otherSmtpRepliesAreNotThrottled() {
+        assertNull(Throttle.of(smtp(451, "451 4.3.0 Mail server temporarily rejected message")));
+        assertNull(Throttle.of(smtp(550, "550 5.7.1 Client does not have permissions to send as this sender")));
+        assertNull(Throttle.of(smtp(554, "554 5.4.7 421 hops exceeded")));
+    }
+
+    @Test
+    void smtpReplyInAngusMessageText() {
+        MessagingException e = new MessagingException("Could not connect to SMTP host: smtp.office365.com, port: 587, response: 421 4.7.0 Try again later");
+        assertEquals("smtp 421 4.7.0", Throttle.of(e).kind);
+        assertNull(Throttle.of(new MessagingException("Could not connect to SMTP host: smtp.office365.com, port: 421")));
+    }
+
+    @Test
+    void smtpReplyFoundDownTheCauseChain() {
+        MessagingException e = new MessagingException("Sending failed", smtp(421, "421 4.7.66 Too many concurrent connections"));
+        assertEquals("smtp 421 4.7.66", Throttle.of(e).kind);
+    }
+
+    @Test
+    void taggedImapNoThrottledWithBackoff() {
+        Throttle throttle = Throttle.of(new MessagingException("A3 NO Request is throttled. Suggested Backoff Time: 2000 milliseconds"));
+        assertEquals("imap NO throttled", throttle.kind);
+        assertEquals(2000, throttle.retryAfterMillis);
+    }
+
+    @Test
+    void refusedLoginIsThrottled() {
+        Throttle throttle = Throttle.of(new AuthenticationFailedException("Request is throttled."));
+        assertEquals("imap NO throttled", throttle.kind);
+        assertEquals(-1, throttle.retryAfterMillis);
+    }
+
+    @Test
+    void untaggedOrUnrelatedImapNoIsNotThrottled() {
+        assertNull(Throttle.of(new MessagingException("* NO Mailbox is throttled")));
+        assertNull(Throttle.of(new MessagingException("A4 NO Message not found")));
+        assertNull(Throttle.of(new AuthenticationFailedException("AUTHENTICATE failed.")));
+    }
+
+    @Test
+    void byeToConnectIsThrottled() {
+        assertEquals("imap BYE", Throttle.of(new MessagingException("* BYE Connection is closed. 13")).kind);
+    }
+
+    @Test
+    void byeClosingAnOpenStoreOrFolderIsNotThrottled() {
+        assertNull(Throttle.of(new FolderClosedException(null, "* BYE Session expired")));
+        assertNull(Throttle.of(new StoreClosedException(null, "* BYE Server shutting down")));
+        assertNull(Throttle.of(new MessagingException("Fetch failed",
+                new StoreClosedException(null, "closed", new MessagingException("* BYE Session expired")))));
+    }
+
+    @Test
+    void sessionClosedOnlyRulesOutBye() {
+        assertNull(Throttle.classify(new MessagingException("* BYE Session expired"), true));
+        assertEquals("smtp 421 4.7.26", Throttle.classify(smtp(421, "421 4.7.26 Service busy"), true).kind);
+    }
+
+    @Test
+    void tokenEndpoint429() {
+        Throttle throttle = Throttle.of(new TokenClient.Reply(429, new JSONObject(), 30));
+        assertEquals("http 429", throttle.kind);
+        assertEquals(30000, throttle.retryAfterMillis);
+        assertEquals(-1, Throttle.of(new TokenClient.Reply(429, new JSONObject(), -1)).retryAfterMillis);
+        assertNull(Throttle.of(new TokenClient.Reply(400, new JSONObject(), 30)));
+    }
+}